@@ -0,0 +1,53 @@
+package de.htw.mp.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns category names to dense integer ids. The ids start at 0 and 
+ * are assigned in the order the categories are added, this allows 
+ * to count votes per category in a plain array.
+ * 
+ * @author Nico Hezel
+ */
+public class CategoryDictionary {
+
+	protected Map<String, Integer> nameToId = new HashMap<>();
+	protected List<String> idToName = new ArrayList<>();
+	
+	/**
+	 * Returns the id of the category and adds it to the dictionary if needed.
+	 * 
+	 * @param category
+	 * @return id of the category
+	 */
+	public synchronized int intern(String category) {
+		Integer id = nameToId.get(category);
+		if(id == null) {
+			id = idToName.size();
+			nameToId.put(category, id);
+			idToName.add(category);
+		}
+		return id;
+	}
+	
+	/**
+	 * Id of the category or -1 if the category is unknown.
+	 * 
+	 * @param category
+	 * @return
+	 */
+	public synchronized int getId(String category) {
+		return nameToId.getOrDefault(category, -1);
+	}
+	
+	public synchronized String getName(int id) {
+		return idToName.get(id);
+	}
+	
+	public synchronized int size() {
+		return idToName.size();
+	}
+}
@@ -0,0 +1,129 @@
+package de.htw.mp.model;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+
+/**
+ * Simple POJO (Plain old Java object) for holding precalculated results.
+ * 
+ * @author Nico Hezel
+ */
+public class FeatureContainer {
+
+	protected String name;
+	protected String category;
+	protected int categoryId;
+	protected Color meanColor;
+	protected volatile int[][] meanImagePyramid;
+	protected long perceptualHash;
+	protected volatile float[] embedding;
+	protected volatile MeanImagePager pager;
+	
+	public FeatureContainer(String name, String category, int categoryId, Color meanColor, int[][] meanImagePyramid, long perceptualHash) {
+		this.name = name;
+		this.category = category;
+		this.categoryId = categoryId;
+		this.meanColor = meanColor;
+		this.meanImagePyramid = meanImagePyramid;
+		this.perceptualHash = perceptualHash;
+	}
+
+	public String getName() {
+		return name;
+	}
+	
+	public String getCategory() {
+		return category;
+	}
+
+	/**
+	 * Dense id of the category, see {@link CategoryDictionary}
+	 * 
+	 * @return
+	 */
+	public int getCategoryId() {
+		return categoryId;
+	}
+
+	public Color getMeanColor() {
+		return meanColor;
+	}
+
+	/**
+	 * Mean image of the container. It is not stored but created from 
+	 * the finest level of the mean image pyramid on every call.
+	 * 
+	 * @return
+	 */
+	public BufferedImage getMeanImage() {
+		int[][] pyramid = getMeanImagePyramid();
+		int[] pixels = pyramid[pyramid.length - 1];
+		int size = (int)Math.round(Math.sqrt(pixels.length));
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, size, size, pixels, 0, size);
+		return image;
+	}
+	
+	/**
+	 * Keeps the mean image pyramid within a memory budget
+	 * 
+	 * @param pager
+	 */
+	public void setPager(MeanImagePager pager) {
+		this.pager = pager;
+	}
+
+	/**
+	 * Downscaled versions of the mean image, from the coarsest to the finest level.
+	 * Each level contains packed RGB pixels, see {@link de.htw.mp.retrieval.ImagePyramid}
+	 * The pyramid is paged in if it was spilled to disk.
+	 * 
+	 * @return
+	 */
+	public int[][] getMeanImagePyramid() {
+		int[][] pyramid = meanImagePyramid;
+		MeanImagePager pager = this.pager;
+		if(pager == null)
+			return pyramid;
+		if(pyramid == null)
+			return pager.pageIn(this);
+		pager.touched(this);
+		return pyramid;
+	}
+	
+	/**
+	 * Mean image pyramid without paging it in
+	 * 
+	 * @return pyramid or NULL if it is not in memory
+	 */
+	public int[][] getResidentMeanImagePyramid() {
+		return meanImagePyramid;
+	}
+	
+	public void setMeanImagePyramid(int[][] meanImagePyramid) {
+		this.meanImagePyramid = meanImagePyramid;
+	}
+
+	/**
+	 * 64 bit difference hash of the mean image, see {@link de.htw.mp.retrieval.PerceptualHash}
+	 * 
+	 * @return
+	 */
+	public long getPerceptualHash() {
+		return perceptualHash;
+	}
+
+	/**
+	 * Compressed mean image, see {@link de.htw.mp.retrieval.PCAProjection}
+	 * 
+	 * @return embedding or NULL if the projection is not fitted yet
+	 */
+	public float[] getEmbedding() {
+		return embedding;
+	}
+
+	public void setEmbedding(float[] embedding) {
+		this.embedding = embedding;
+	}
+}
\ No newline at end of file
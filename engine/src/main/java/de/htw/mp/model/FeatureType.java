@@ -0,0 +1,14 @@
+package de.htw.mp.model;
+
+/**
+ * Type of features
+ * 
+ * @author Nico Hezel
+ */
+public enum FeatureType { 
+	MeanColor, MeanImage, MeanImagePyramid, MeanImagePCA, PerceptualHash;
+	
+	public static FeatureType get(String value) {
+		return FeatureType.valueOf(value.trim().replaceAll(" ", ""));
+	}
+}
@@ -0,0 +1,25 @@
+package de.htw.mp.model;
+
+/**
+ * Feature of a database element and its distance to a search query.
+ * 
+ * @author Nico Hezel
+ */
+public class FeatureWrapper {
+
+    private FeatureContainer feature;
+    private double featureVector;
+
+    public FeatureWrapper(FeatureContainer feature, double featureVector) {
+        this.feature = feature;
+        this.featureVector = featureVector;
+    }
+    
+    public FeatureContainer getFeature() {
+    	return this.feature;
+    }
+    
+    public double getDistance() {
+    	return this.featureVector;
+    }
+}
@@ -0,0 +1,25 @@
+package de.htw.mp.model;
+
+/**
+ * Keeps the mean image pyramids of feature containers within a memory budget.
+ * Pyramids which are not in memory are paged in on access.
+ * 
+ * @author Nico Hezel
+ */
+public interface MeanImagePager {
+
+	/**
+	 * Called on every access to a mean image pyramid which is in memory
+	 * 
+	 * @param feature
+	 */
+	public void touched(FeatureContainer feature);
+
+	/**
+	 * Load the mean image pyramid of a feature container which is not in memory
+	 * 
+	 * @param feature
+	 * @return
+	 */
+	public int[][] pageIn(FeatureContainer feature);
+}
@@ -0,0 +1,34 @@
+package de.htw.mp.model;
+
+/**
+ * Result of a classification, the predicted category and 
+ * the share of the votes it received.
+ * 
+ * @author Nico Hezel
+ */
+public class Prediction {
+
+	protected String category;
+	protected double confidence;
+	
+	public Prediction(String category, double confidence) {
+		this.category = category;
+		this.confidence = confidence;
+	}
+
+	public String getCategory() {
+		return category;
+	}
+
+	/**
+	 * @return value between 0 and 1
+	 */
+	public double getConfidence() {
+		return confidence;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s (%.0f%%)", category, confidence * 100);
+	}
+}
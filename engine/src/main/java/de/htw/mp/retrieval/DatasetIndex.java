@@ -0,0 +1,615 @@
+package de.htw.mp.retrieval;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.htw.mp.model.CategoryDictionary;
+import de.htw.mp.model.FeatureContainer;
+import de.htw.mp.retrieval.DatasetScanner.CategoryMode;
+
+/**
+ * Files and features of a dataset. The dataset is loaded by scanning
+ * a directory, all methods can be called while the dataset is loading.
+ * 
+ * Readers get an immutable {@link IndexSnapshot} which is replaced atomically.
+ * A new dataset is built off to the side in a staging area, readers never
+ * block and never see a half built version. After {@link #clear()} the loading
+ * dataset is published every {@link #PUBLISH_INTERVAL} ms, so it can be searched
+ * while it is loading. Otherwise the old version stays visible until the new one
+ * is complete.
+ * 
+ * @author Nico Hezel
+ */
+public class DatasetIndex {
+
+	/**
+	 * Minimal time in ms between two snapshots of a loading dataset
+	 */
+	public static final long PUBLISH_INTERVAL = 250;
+
+	/**
+	 * Current version of the dataset
+	 */
+	private final AtomicReference<IndexSnapshot> current = new AtomicReference<>(IndexSnapshot.EMPTY);
+
+	/**
+	 * Staging area: for each image category there exists a file list
+	 */
+	private final Map<String, List<File>> categoryToFileList = new ConcurrentHashMap<>();
+
+	/**
+	 * Staging area: map from category name to the feature container of a category
+	 */
+	private final Map<String, FeatureContainer> categoryFeatures = new ConcurrentHashMap<>();
+
+	/**
+	 * Staging area: map from file id to feature container for the image
+	 */
+	private final Map<String, FeatureContainer> imageFeatures = new ConcurrentHashMap<>();
+
+	/**
+	 * Staging area: map from category name to the feature containers of all images in the category
+	 */
+	private final Map<String, FeatureContainer[]> categoryImageFeatures = new ConcurrentHashMap<>();
+
+	/**
+	 * Staging area: map from category name to the color sums of all images in the category
+	 */
+	private final Map<String, long[]> categoryColorSums = new ConcurrentHashMap<>();
+
+	/**
+	 * Dense integer ids of all category names
+	 */
+	private volatile CategoryDictionary categoryDictionary = new CategoryDictionary();
+
+	/**
+	 * Incremented every time a snapshot is published
+	 */
+	private final AtomicLong datasetVersion = new AtomicLong();
+
+	/**
+	 * Publish snapshots while loading and the time of the last one
+	 */
+	private volatile boolean progressive = true;
+	private volatile long lastPublish;
+	private final Object publishLock = new Object();
+
+	/**
+	 * Calculates the features of the images
+	 */
+	private final FeatureExtractor extractor;
+
+	/**
+	 * Keeps the features within the memory budget
+	 */
+	private final FeatureStore featureStore = new FeatureStore(FeatureStore.DEFAULT_BUDGET);
+
+	/**
+	 * Number of dimensions of the embeddings, 0 disables the projection
+	 */
+	private volatile int embeddingDimensions = 64;
+
+	/**
+	 * Maximal number of images used to fit the projection
+	 */
+	private static final int EMBEDDING_SAMPLES = 1000;
+
+	public DatasetIndex(FeatureExtractor extractor) {
+		this.extractor = extractor;
+		clear();
+	}
+
+	/**
+	 * Removes all files and features of the current dataset.
+	 * The next dataset is searchable while it is loading.
+	 */
+	public synchronized void clear() {
+		featureStore.clear();
+		resetStaging();
+		progressive = true;
+		publish(null, null);
+	}
+
+	/**
+	 * Empty staging area for the next dataset
+	 */
+	private void resetStaging() {
+		categoryDictionary = new CategoryDictionary();
+		categoryToFileList.clear();
+		categoryFeatures.clear();
+		imageFeatures.clear();
+		categoryImageFeatures.clear();
+		categoryColorSums.clear();
+		categoryToFileList.put(IndexSnapshot.ALL_CATEGORY, Collections.synchronizedList(new ArrayList<File>()));
+	}
+
+	/**
+	 * Current version of the dataset. Use the same snapshot for all
+	 * steps of a search to get consistent results.
+	 * 
+	 * @return
+	 */
+	public IndexSnapshot snapshot() {
+		return current.get();
+	}
+
+	/**
+	 * All image files of a category discovered so far
+	 * 
+	 * @param categoryName
+	 * @return
+	 */
+	public File[] getFiles(String categoryName) {
+		return snapshot().getFiles(categoryName);
+	}
+
+	/**
+	 * Names of all categories discovered so far, including "All"
+	 * 
+	 * @return
+	 */
+	public Set<String> getCategoryNames() {
+		return snapshot().getCategoryNames();
+	}
+
+	/**
+	 * @param file
+	 * @return features of the image or NULL if they are not calculated yet
+	 */
+	public FeatureContainer getImageFeature(File file) {
+		return snapshot().getImageFeature(file);
+	}
+
+	/**
+	 * @param categoryName
+	 * @return features of the category or NULL if they are not calculated yet
+	 */
+	public FeatureContainer getCategoryFeature(String categoryName) {
+		return snapshot().getCategoryFeature(categoryName);
+	}
+
+	/**
+	 * @return features of all images calculated so far
+	 */
+	public FeatureContainer[] getImageFeatures() {
+		return snapshot().getImageFeatures();
+	}
+
+	/**
+	 * @return features of all categories calculated so far
+	 */
+	public FeatureContainer[] getCategoryFeatures() {
+		return snapshot().getCategoryFeatures();
+	}
+
+	/**
+	 * @return image features per completed category
+	 */
+	public Map<String, FeatureContainer[]> getCategoryImageFeatures() {
+		return snapshot().getCategoryImageFeatures();
+	}
+
+	/**
+	 * Incremented every time the features change
+	 * 
+	 * @return
+	 */
+	public long getVersion() {
+		return snapshot().getVersion();
+	}
+
+	/**
+	 * @return projection of the mean images or NULL if it is not fitted yet
+	 */
+	public PCAProjection getProjection() {
+		return snapshot().getProjection();
+	}
+
+	/**
+	 * @return index of the perceptual hashes of all images or NULL if the dataset is not loaded yet
+	 */
+	public HammingIndex getHammingIndex() {
+		return snapshot().getHammingIndex();
+	}
+
+	/**
+	 * Memory budget, usage and spill statistics of the features
+	 * 
+	 * @return
+	 */
+	public FeatureStore getFeatureStore() {
+		return featureStore;
+	}
+
+	/**
+	 * Add the features of an image to the staging area and track their memory
+	 * 
+	 * @param fileId
+	 * @param feature
+	 */
+	private void putImageFeature(String fileId, FeatureContainer feature) {
+		featureStore.register(feature);
+		imageFeatures.put(fileId, feature);
+		publishIfDue();
+	}
+
+	/**
+	 * Add the features of a category to the staging area and track their memory
+	 * 
+	 * @param feature
+	 */
+	private void putCategoryFeature(FeatureContainer feature) {
+		featureStore.register(feature);
+		categoryFeatures.put(feature.getName(), feature);
+		publishIfDue();
+	}
+
+	/**
+	 * Publish the staging area if the dataset is searchable while loading
+	 * and the last snapshot is older than {@link #PUBLISH_INTERVAL}.
+	 */
+	private void publishIfDue() {
+		if(progressive && System.nanoTime() - lastPublish > TimeUnit.MILLISECONDS.toNanos(PUBLISH_INTERVAL)) {
+			synchronized (publishLock) {
+				if(System.nanoTime() - lastPublish > TimeUnit.MILLISECONDS.toNanos(PUBLISH_INTERVAL))
+					publish(null, null);
+			}
+		}
+	}
+
+	/**
+	 * Copy the staging area into a new snapshot and replace the current one.
+	 * Features of the old snapshot which are not part of the new one are
+	 * not tracked by the feature store anymore.
+	 * 
+	 * @param hammingIndex
+	 * @param projection
+	 */
+	private void publish(HammingIndex hammingIndex, PCAProjection projection) {
+		synchronized (publishLock) {
+			Map<String, File[]> categoryFiles = new LinkedHashMap<>();
+			categoryToFileList.forEach((categoryName, files) -> {
+				synchronized (files) {
+					categoryFiles.put(categoryName, files.toArray(new File[0]));
+				}
+			});
+
+			IndexSnapshot snapshot = new IndexSnapshot(datasetVersion.incrementAndGet(), categoryFiles, new LinkedHashMap<>(imageFeatures),
+					new LinkedHashMap<>(categoryFeatures), new LinkedHashMap<>(categoryImageFeatures), hammingIndex, projection);
+			IndexSnapshot old = current.getAndSet(snapshot);
+			lastPublish = System.nanoTime();
+
+			// release the features of a replaced dataset
+			old.getImageFeatureMap().forEach((fileId, feature) -> {
+				if(snapshot.getImageFeature(fileId) != feature)
+					featureStore.release(feature);
+			});
+			for (FeatureContainer feature : old.getCategoryFeatures())
+				if(snapshot.getCategoryFeature(feature.getName()) != feature)
+					featureStore.release(feature);
+		}
+	}
+
+	/**
+	 * Build the search structures of the complete staging area and publish it
+	 */
+	private void publishComplete() {
+		FeatureContainer[] images = imageFeatures.values().toArray(new FeatureContainer[0]);
+		FeatureContainer[] categories = categoryFeatures.values().toArray(new FeatureContainer[0]);
+		publish(new HammingIndex(images), fitEmbeddings(images, categories));
+	}
+
+	/**
+	 * Number of dimensions of the embeddings calculated after the next load.
+	 * 0 disables the projection.
+	 * 
+	 * @param dimensions
+	 */
+	public void setEmbeddingDimensions(int dimensions) {
+		this.embeddingDimensions = dimensions;
+	}
+
+	/**
+	 * Fits the projection on a sample of the finest mean image pyramid levels
+	 * and stores the embedding of every image and category in its feature container.
+	 * Afterwards the pyramids of the images are spilled, they are only paged in 
+	 * again by the searches with pyramids and the verification of duplicates.
+	 * 
+	 * @param images
+	 * @param categories
+	 * @return projection or NULL if it is disabled or there are not enough images
+	 */
+	private PCAProjection fitEmbeddings(FeatureContainer[] images, FeatureContainer[] categories) {
+		if(embeddingDimensions <= 0 || images.length < 2)
+			return null;
+
+		// evenly spaced sample of the images
+		List<float[]> samples = new ArrayList<>();
+		int step = Math.max(1, images.length / EMBEDDING_SAMPLES);
+		for (int i = 0; i < images.length && samples.size() < EMBEDDING_SAMPLES; i += step)
+			samples.add(embeddingInput(images[i]));
+
+		PCAProjection pca = PCAProjection.fit(samples, embeddingDimensions);
+		if(pca == null)
+			return null;
+
+		Arrays.stream(images).parallel().forEach(feature -> {
+			feature.setEmbedding(pca.project(embeddingInput(feature)));
+			featureStore.update(feature);
+		});
+		for (FeatureContainer feature : categories) {
+			feature.setEmbedding(pca.project(embeddingInput(feature)));
+			featureStore.update(feature);
+		}
+		
+		// the embeddings replace the pyramids in memory, the categories keep them for the display
+		for (FeatureContainer feature : images)
+			featureStore.spill(feature);
+		return pca;
+	}
+
+	/**
+	 * Finest level of the mean image pyramid as a vector
+	 * 
+	 * @param feature
+	 * @return
+	 */
+	private static float[] embeddingInput(FeatureContainer feature) {
+		int[][] pyramid = feature.getMeanImagePyramid();
+		return PCAProjection.toVector(pyramid[pyramid.length - 1]);
+	}
+
+	/**
+	 * Scans the directory and all its sub directories for image files, see 
+	 * {@link #load(Path, CategoryMode, LoadingProgress)}. If the directory has sub 
+	 * directories the folder names are used as categories, otherwise the filename prefixes.
+	 * 
+	 * @param dir
+	 * @param progress
+	 */
+	public void load(Path dir, LoadingProgress progress) {
+		CategoryMode categoryMode;
+		try {
+			categoryMode = CategoryMode.detect(dir);
+		} catch (IOException e) {
+			e.printStackTrace();
+			progress.finished();
+			return;
+		}
+		load(dir, categoryMode, progress);
+	}
+	
+	/**
+	 * Scans the directory and all its sub directories for image files. Every file
+	 * found is directly passed to the feature extraction, so the images are decoded
+	 * while the scan is still in progress. The queue of the extraction is bounded, 
+	 * when it is full the scanning thread extracts the features itself.
+	 * 
+	 * After {@link #clear()} the features of each image are published shortly after
+	 * they are calculated. Otherwise the current dataset is replaced once the new
+	 * one is complete. After the scan, the features of a category are calculated
+	 * once all of its images are done. Only then the category can be used by the
+	 * cascaded search.
+	 * 
+	 * Blocks until all features are calculated.
+	 * 
+	 * @param dir
+	 * @param categoryMode how the categories of the images are determined
+	 * @param progress
+	 */
+	public synchronized void load(Path dir, CategoryMode categoryMode, LoadingProgress progress) {
+		resetStaging();
+		progressive = (snapshot().getImageFeatures().length == 0);
+
+		// number of images per category without features
+		Map<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+		Set<String> completed = ConcurrentHashMap.newKeySet();
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+
+			// extract the image features while scanning
+			new DatasetScanner(categoryMode).scan(dir, (categoryName, imagePath) -> {
+				File imageFile = imagePath.toFile();
+				pending.computeIfAbsent(categoryName, name -> new AtomicInteger()).incrementAndGet();
+				categoryToFileList.computeIfAbsent(categoryName, name -> Collections.synchronizedList(new ArrayList<File>())).add(imageFile);
+				categoryToFileList.get(IndexSnapshot.ALL_CATEGORY).add(imageFile);
+				progress.imageDiscovered();
+
+				workers.execute(() -> {
+					try {
+						long[] colorSums = extractor.getColorSums(imageFile);
+						FeatureContainer feature = extractor.extractFeature(imageFile.getName(), categoryName, categoryDictionary, colorSums, imageFile);
+						addColorSums(categoryName, colorSums);
+						putImageFeature(IndexSnapshot.fileId(imageFile), feature);
+					} finally {
+						progress.imageProcessed();
+						if(pending.get(categoryName).decrementAndGet() == 0 && progress.isScanFinished())
+							completeCategory(categoryName, completed);
+					}
+				});
+			});
+
+			// categories whose images are already done
+			progress.scanFinished();
+			pending.forEach((categoryName, count) -> {
+				if(count.get() == 0)
+					completeCategory(categoryName, completed);
+			});
+
+			// wait until all image and category features are calculated
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+			publishComplete();
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			workers.shutdown();
+			ImageDecoder.getInstance().clearPool();
+			progress.finished();
+		}
+	}
+
+	/**
+	 * Sorts the image files of a completed category and combines the features of 
+	 * its images to the category features, the images are not decoded again.
+	 * Every category is only completed once.
+	 * 
+	 * @param categoryName
+	 * @param completed names of all completed categories
+	 */
+	private void completeCategory(String categoryName, Set<String> completed) {
+		if(completed.add(categoryName) == false)
+			return;
+
+		List<File> fileList = categoryToFileList.get(categoryName);
+		File[] categoryFiles;
+		synchronized (fileList) {
+			fileList.sort(null);
+			categoryFiles = fileList.toArray(new File[0]);
+		}
+
+		FeatureContainer[] categoryImages = Arrays.stream(categoryFiles)
+												  .map(file -> imageFeatures.get(IndexSnapshot.fileId(file)))
+												  .filter(Objects::nonNull)
+												  .toArray(FeatureContainer[]::new);
+		categoryImageFeatures.put(categoryName, categoryImages);
+
+		long[] colorSums = categoryColorSums.getOrDefault(categoryName, new long[4]);
+		FeatureContainer feature;
+		synchronized (colorSums) {
+			feature = extractor.combineFeatures(categoryName, categoryName, categoryDictionary, colorSums, categoryImages);
+		}
+		if(feature != null)
+			putCategoryFeature(feature);
+	}
+
+	/**
+	 * Add the color sums of an image to the sums of its category
+	 * 
+	 * @param categoryName
+	 * @param colorSums
+	 */
+	private void addColorSums(String categoryName, long[] colorSums) {
+		long[] categorySums = categoryColorSums.computeIfAbsent(categoryName, name -> new long[colorSums.length]);
+		synchronized (categorySums) {
+			for (int i = 0; i < colorSums.length; i++)
+				categorySums[i] += colorSums[i];
+		}
+	}
+
+	/**
+	 * @return edge length of the feature grid of the extractor
+	 */
+	public int getGridSize() {
+		return extractor.getGridSize();
+	}
+
+	/**
+	 * Write all categories, their files and all calculated features of the current snapshot.
+	 * The modification time and size of every file are stored to detect changed files.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeSnapshot(DataOutputStream out) throws IOException {
+		IndexSnapshot snapshot = snapshot();
+		List<String> categoryNames = new ArrayList<>(snapshot.getCategoryNames());
+		categoryNames.remove(IndexSnapshot.ALL_CATEGORY);
+
+		out.writeInt(categoryNames.size());
+		for (String categoryName : categoryNames) {
+			out.writeUTF(categoryName);
+
+			// image files and their features
+			File[] files = snapshot.getFiles(categoryName);
+			out.writeInt(files.length);
+			for (File file : files) {
+				out.writeUTF(file.getPath());
+				out.writeLong(file.lastModified());
+				out.writeLong(file.length());
+				FeatureContainer feature = snapshot.getImageFeature(file);
+				out.writeBoolean(feature != null);
+				if(feature != null)
+					FeatureIO.writeFeature(out, feature, featureStore.readMeanImagePyramid(feature));
+			}
+
+			// category feature
+			FeatureContainer feature = snapshot.getCategoryFeature(categoryName);
+			out.writeBoolean(feature != null);
+			if(feature != null)
+				FeatureIO.writeFeature(out, feature);
+		}
+	}
+
+	/**
+	 * Replace the content of the index with a snapshot written by {@link #writeSnapshot(DataOutputStream)}.
+	 * After {@link #clear()} every category can be searched shortly after it is read.
+	 * An image file which was changed or removed since the snapshot was written 
+	 * stops the reading with an exception, its stored features are outdated.
+	 * 
+	 * @param in
+	 * @param progress
+	 * @throws IOException
+	 */
+	public synchronized void readSnapshot(DataInputStream in, LoadingProgress progress) throws IOException {
+		resetStaging();
+		progressive = (snapshot().getImageFeatures().length == 0);
+
+		int categoryCount = in.readInt();
+		for (int c = 0; c < categoryCount; c++) {
+			String categoryName = in.readUTF();
+
+			// image files and their features
+			int fileCount = in.readInt();
+			List<File> files = Collections.synchronizedList(new ArrayList<File>(fileCount));
+			List<FeatureContainer> categoryImages = new ArrayList<>(fileCount);
+			categoryToFileList.put(categoryName, files);
+			for (int i = 0; i < fileCount; i++) {
+				File file = new File(in.readUTF());
+				long lastModified = in.readLong();
+				long length = in.readLong();
+				if(file.lastModified() != lastModified || file.length() != length)
+					throw new IOException("Image file changed since the snapshot was written " + file);
+				progress.imageDiscovered();
+				if(in.readBoolean()) {
+					FeatureContainer feature = FeatureIO.readFeature(in, categoryDictionary);
+					categoryImages.add(feature);
+					putImageFeature(IndexSnapshot.fileId(file), feature);
+				}
+				files.add(file);
+				categoryToFileList.get(IndexSnapshot.ALL_CATEGORY).add(file);
+				progress.imageProcessed();
+			}
+			categoryImageFeatures.put(categoryName, categoryImages.toArray(new FeatureContainer[0]));
+
+			// category feature
+			if(in.readBoolean())
+				putCategoryFeature(FeatureIO.readFeature(in, categoryDictionary));
+		}
+		progress.scanFinished();
+
+		publishComplete();
+	}
+}
@@ -0,0 +1,235 @@
+package de.htw.mp.retrieval;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
+/**
+ * Walks a directory tree in parallel and reports every image file 
+ * together with its category as soon as it is found. Each directory 
+ * is listed by its own fork join task. Symbolic links to directories 
+ * outside of the root directory are followed, every directory is only 
+ * scanned once. Links to directories inside the root are skipped, 
+ * these directories are scanned under their own path.
+ * 
+ * @author Nico Hezel
+ */
+public class DatasetScanner {
+
+	/**
+	 * How the category of an image file is determined
+	 */
+	public static enum CategoryMode {
+		
+		/**
+		 * Path of the directory containing the file relative to the root directory,
+		 * e.g. "cats/small". Files directly inside the root directory use their 
+		 * filename prefix.
+		 */
+		Folder, 
+		
+		/**
+		 * Part of the filename before the first underscore
+		 */
+		FilenamePrefix;
+		
+		/**
+		 * Folder if the directory has sub directories, otherwise FilenamePrefix
+		 * 
+		 * @param dir
+		 * @return
+		 * @throws IOException
+		 */
+		public static CategoryMode detect(Path dir) throws IOException {
+			return hasSubdirectories(dir) ? Folder : FilenamePrefix;
+		}
+	}
+	
+	/**
+	 * Image files with these extensions are reported
+	 */
+	private static final String[] EXTENSIONS = { ".jpg", ".jpeg", ".png" };
+	
+	private final CategoryMode categoryMode;
+	private final ForkJoinPool pool;
+	
+	/**
+	 * Scanner using the common fork join pool
+	 * 
+	 * @param categoryMode
+	 */
+	public DatasetScanner(CategoryMode categoryMode) {
+		this(categoryMode, ForkJoinPool.commonPool());
+	}
+	
+	public DatasetScanner(CategoryMode categoryMode, ForkJoinPool pool) {
+		this.categoryMode = categoryMode;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Scan the directory and all its sub directories. The consumer gets called 
+	 * concurrently from multiple threads for every image file found, the method 
+	 * returns after the whole tree has been scanned. Sub directories which can 
+	 * not be read are skipped.
+	 * 
+	 * @param root
+	 * @param consumer receives the category and the image file
+	 * @throws IOException if the root directory can not be read
+	 */
+	public void scan(Path root, BiConsumer<String, Path> consumer) throws IOException {
+		Path realRoot = root.toRealPath();
+		Set<Path> visited = ConcurrentHashMap.newKeySet();
+		visited.add(realRoot);
+		try {
+			pool.invoke(new DirectoryTask(root, realRoot, root, visited, consumer));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Category of the file based on the category mode. Names of the synthetic 
+	 * category {@link IndexSnapshot#ALL_CATEGORY} followed by any number of 
+	 * underscores get another underscore, so "All" becomes "All_".
+	 * 
+	 * @param root
+	 * @param imageFile
+	 * @return
+	 */
+	public String getCategory(Path root, Path imageFile) {
+		String category;
+		Path parent = imageFile.getParent();
+		if(categoryMode == CategoryMode.Folder && parent != null && !parent.equals(root)) {
+			StringBuilder path = new StringBuilder();
+			for (Path name : root.relativize(parent)) {
+				if(path.length() > 0)
+					path.append('/');
+				path.append(name);
+			}
+			category = path.toString();
+		} else 
+			category = imageFile.getFileName().toString().split("_")[0];
+		
+		if(category.matches(IndexSnapshot.ALL_CATEGORY + "_*"))
+			category += "_";
+		return category;
+	}
+	
+	/**
+	 * @param file
+	 * @return true if the file has an image extension
+	 */
+	public static boolean isImageFile(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String extension : EXTENSIONS) 
+			if(name.endsWith(extension))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * @param dir
+	 * @return true if the directory contains other directories
+	 * @throws IOException
+	 */
+	public static boolean hasSubdirectories(Path dir) throws IOException {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, Files::isDirectory)) {
+			return entries.iterator().hasNext();
+		}
+	}
+	
+	/**
+	 * Lists a single directory, reports its image files and forks a new task 
+	 * for every sub directory which has not been visited yet. A failure to 
+	 * list a sub directory is printed and the directory is skipped.
+	 */
+	private class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 7385620949617294915L;
+		
+		private final Path root;
+		private final Path realRoot;
+		private final Path dir;
+		private final Set<Path> visited;
+		private final BiConsumer<String, Path> consumer;
+		
+		/**
+		 * @param root
+		 * @param realRoot real path of the root
+		 * @param dir
+		 * @param visited real paths of all directories of the scan
+		 * @param consumer
+		 */
+		public DirectoryTask(Path root, Path realRoot, Path dir, Set<Path> visited, BiConsumer<String, Path> consumer) {
+			this.root = root;
+			this.realRoot = realRoot;
+			this.dir = dir;
+			this.visited = visited;
+			this.consumer = consumer;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subTasks = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+				for (Path entry : entries) {
+					if(Files.isDirectory(entry)) {
+						if(visit(entry)) {
+							DirectoryTask task = new DirectoryTask(root, realRoot, entry, visited, consumer);
+							task.fork();
+							subTasks.add(task);
+						}
+					} else if(isImageFile(entry)) {
+						consumer.accept(getCategory(root, entry), entry);
+					}
+				}
+			} catch (DirectoryIteratorException e) {
+				failed(e.getCause());
+			} catch (IOException e) {
+				failed(e);
+			} finally {
+				for (DirectoryTask task : subTasks) 
+					task.join();
+			}
+		}
+		
+		/**
+		 * Only a failure of the root directory stops the scan
+		 * 
+		 * @param e
+		 */
+		private void failed(IOException e) {
+			if(dir.equals(root))
+				throw new UncheckedIOException(e);
+			e.printStackTrace();
+		}
+		
+		/**
+		 * @param subDir
+		 * @return false if the directory has been visited before or is a link into the root directory
+		 */
+		private boolean visit(Path subDir) {
+			try {
+				Path realDir = subDir.toRealPath();
+				if(Files.isSymbolicLink(subDir) && realDir.startsWith(realRoot))
+					return false;
+				return visited.add(realDir);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+	}
+}
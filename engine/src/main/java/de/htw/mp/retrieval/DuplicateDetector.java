@@ -0,0 +1,170 @@
+package de.htw.mp.retrieval;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import de.htw.mp.model.FeatureContainer;
+
+/**
+ * Finds clusters of near duplicate images in the whole dataset. Instead of
+ * comparing all pairs of images, the perceptual hashes are used for blocking:
+ * only images whose hashes are close in the {@link HammingIndex} become
+ * candidates. The candidates are filtered by their mean color and verified
+ * by the distance of their finest mean image pyramid level. All images are
+ * processed in parallel, the matching pairs are merged into clusters with
+ * a union find structure.
+ * 
+ * @author Nico Hezel
+ */
+public class DuplicateDetector {
+
+	/**
+	 * Maximal number of different hash bits of two candidates
+	 */
+	private int hashRadius = 8;
+
+	/**
+	 * Maximal euclidean distance of the mean colors
+	 */
+	private double colorThreshold = 24;
+
+	/**
+	 * Maximal mean pixel distance of the finest pyramid level
+	 */
+	private double imageThreshold = 20;
+
+	/**
+	 * Thresholds of the blocking, the cheap filter and the verification
+	 * 
+	 * @param hashRadius
+	 * @param colorThreshold
+	 * @param imageThreshold
+	 */
+	public void setThresholds(int hashRadius, double colorThreshold, double imageThreshold) {
+		this.hashRadius = hashRadius;
+		this.colorThreshold = colorThreshold;
+		this.imageThreshold = imageThreshold;
+	}
+
+	/**
+	 * Find all clusters of near duplicates
+	 * 
+	 * @param hammingIndex index of all images
+	 * @return clusters with at least two images, the largest cluster first
+	 */
+	public List<FeatureContainer[]> findClusters(HammingIndex hammingIndex) {
+		int n = hammingIndex.size();
+
+		// matching pairs, each pair is only reported by its first image
+		long[] pairs = IntStream.range(0, n).parallel().boxed().flatMapToLong(i -> {
+			FeatureContainer feature = hammingIndex.getFeature(i);
+			return Arrays.stream(hammingIndex.searchIds(feature.getPerceptualHash(), hashRadius))
+						 .filter(j -> j > i && isDuplicate(feature, hammingIndex.getFeature(j)))
+						 .mapToLong(j -> (long)i << 32 | j);
+		}).toArray();
+
+		// union find
+		int[] parent = IntStream.range(0, n).toArray();
+		for (long pair : pairs) {
+			int a = find(parent, (int)(pair >>> 32));
+			int b = find(parent, (int)pair);
+			if(a != b)
+				parent[Math.max(a, b)] = Math.min(a, b);
+		}
+
+		// group the images by their root
+		Map<Integer, List<FeatureContainer>> groups = new HashMap<>();
+		boolean[] grouped = new boolean[n];
+		for (long pair : pairs) {
+			for (int i : new int[] { (int)(pair >>> 32), (int)pair }) {
+				if(grouped[i])
+					continue;
+				grouped[i] = true;
+				groups.computeIfAbsent(find(parent, i), root -> new ArrayList<>()).add(hammingIndex.getFeature(i));
+			}
+		}
+
+		List<FeatureContainer[]> clusters = new ArrayList<>();
+		for (List<FeatureContainer> group : groups.values())
+			clusters.add(group.toArray(new FeatureContainer[0]));
+		clusters.sort((c1, c2) -> Integer.compare(c2.length, c1.length));
+		return clusters;
+	}
+
+	/**
+	 * Cheap mean color filter first, afterwards the mean image verification
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private boolean isDuplicate(FeatureContainer a, FeatureContainer b) {
+		int diffR = a.getMeanColor().getRed() - b.getMeanColor().getRed();
+		int diffG = a.getMeanColor().getGreen() - b.getMeanColor().getGreen();
+		int diffB = a.getMeanColor().getBlue() - b.getMeanColor().getBlue();
+		if(diffR * diffR + diffG * diffG + diffB * diffB > colorThreshold * colorThreshold)
+			return false;
+
+		int[][] pyramidA = a.getMeanImagePyramid();
+		int[][] pyramidB = b.getMeanImagePyramid();
+		return ImagePyramid.distance(pyramidA[pyramidA.length - 1], pyramidB[pyramidB.length - 1]) <= imageThreshold;
+	}
+
+	/**
+	 * Root of the element, compresses the path on the way
+	 */
+	private static int find(int[] parent, int i) {
+		while(parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Write one line per image with its cluster number, category, name and
+	 * file id. The file ids are looked up in the snapshot the clusters were 
+	 * found in, names alone are not unique across the folders of a dataset.
+	 * 
+	 * @param file
+	 * @param clusters
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	public static void writeCsv(Path file, List<FeatureContainer[]> clusters, IndexSnapshot snapshot) throws IOException {
+		Map<FeatureContainer, String> fileIds = new IdentityHashMap<>();
+		for (Map.Entry<String, FeatureContainer> entry : snapshot.getImageFeatureMap().entrySet())
+			fileIds.put(entry.getValue(), entry.getKey());
+		
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write("cluster,category,name,file");
+			writer.newLine();
+			for (int c = 0; c < clusters.size(); c++) {
+				for (FeatureContainer feature : clusters.get(c)) {
+					String fileId = fileIds.getOrDefault(feature, "");
+					writer.write(c + "," + csvValue(feature.getCategory()) + "," + csvValue(feature.getName()) + "," + csvValue(fileId));
+					writer.newLine();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Quotes values with separators, quotes or line breaks (RFC 4180)
+	 */
+	private static String csvValue(String value) {
+		if(value.contains(",") || value.contains("\"") || value.contains("\r") || value.contains("\n"))
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		return value;
+	}
+}
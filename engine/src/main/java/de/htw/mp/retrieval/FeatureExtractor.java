@@ -0,0 +1,555 @@
+package de.htw.mp.retrieval;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+import de.htw.mp.model.CategoryDictionary;
+import de.htw.mp.model.FeatureContainer;
+import de.htw.mp.retrieval.ImageDecoder.DecodedImage;
+
+/**
+ * Calculates the features of images: the mean color, the mean image, 
+ * the pyramid of the mean image and its perceptual hash. Does not depend on any UI classes.
+ * 
+ * Every image is resampled to a canonical grid before it is added to a mean image,
+ * so images of different sizes can be averaged and all mean images have the same size.
+ * 
+ * @author Nico Hezel
+ */
+public class FeatureExtractor {
+
+	/**
+	 * Edge length of the canonical grid of the system property "datasetviewer.featureGrid", 32 by default
+	 */
+	public static final int DEFAULT_GRID_SIZE = Integer.getInteger("datasetviewer.featureGrid", 32);
+
+	/**
+	 * Images with more pixels are processed row by row or in regions
+	 */
+	public static final long TILED_EXTRACTION_THRESHOLD = 4096 * 4096;
+	
+	/**
+	 * Pixels of a region which is decoded at once
+	 */
+	private static final long REGION_PIXELS = 2048 * 2048;
+	
+	/**
+	 * Pixel row of a decoded image, reused by every extraction of a thread
+	 */
+	private static final ThreadLocal<int[]> rowBuffer = ThreadLocal.withInitial(() -> new int[0]);
+	
+	/**
+	 * Edge length of the mean images
+	 */
+	private volatile int gridSize = DEFAULT_GRID_SIZE;
+	
+	/**
+	 * Mean color of baseline JPEGs from their DC coefficients
+	 */
+	private volatile boolean useJpegDC = true;
+	
+	/**
+	 * Calculate all features of the given images
+	 * 
+	 * @param name
+	 * @param categoryName
+	 * @param dictionary assigns the category id
+	 * @param imageFiles
+	 * @return
+	 */
+	public FeatureContainer extractFeature(String name, String categoryName, CategoryDictionary dictionary, File ... imageFiles) {
+		return extractFeature(name, categoryName, dictionary, getColorSums(imageFiles), imageFiles);
+	}
+	
+	/**
+	 * Calculate all features of the given images, the mean color is calculated from 
+	 * the already summed up colors of the images.
+	 * 
+	 * @param name
+	 * @param categoryName
+	 * @param dictionary assigns the category id
+	 * @param colorSums of the images, see {@link #getColorSums(File...)}
+	 * @param imageFiles
+	 * @return
+	 */
+	public FeatureContainer extractFeature(String name, String categoryName, CategoryDictionary dictionary, long[] colorSums, File ... imageFiles) {
+		BufferedImage meanImage = getMeanImage(imageFiles);
+		int size = meanImage.getWidth();
+		int[] pixels = meanImage.getRGB(0, 0, size, size, null, 0, size);
+		return createFeature(name, categoryName, dictionary, getMeanColor(colorSums), pixels, size);
+	}
+	
+	/**
+	 * Combine the features of several images, e.g. all images of a category, without decoding 
+	 * the images again. The mean color is calculated from the summed up colors of all images, 
+	 * the mean image is the mean of the finest pyramid levels. Every image has the same weight 
+	 * like in {@link #getMeanImage(File...)}, images with a different grid are skipped.
+	 * 
+	 * @param name
+	 * @param categoryName
+	 * @param dictionary assigns the category id
+	 * @param colorSums of all images, see {@link #getColorSums(File...)}
+	 * @param features of the images
+	 * @return combined features or NULL if there are no images
+	 */
+	public FeatureContainer combineFeatures(String name, String categoryName, CategoryDictionary dictionary, long[] colorSums, FeatureContainer ... features) {
+		if(features.length == 0)
+			return null;
+		
+		int[][] firstPyramid = features[0].getMeanImagePyramid();
+		int length = firstPyramid[firstPyramid.length - 1].length;
+		long[] sums = new long[length * 3];
+		int imageCount = 0;
+		for (FeatureContainer feature : features) {
+			int[][] pyramid = feature.getMeanImagePyramid();
+			int[] pixels = pyramid[pyramid.length - 1];
+			if(pixels.length != length)
+				continue;
+			addPixels(pixels, sums);
+			imageCount++;
+		}
+		
+		int size = (int)Math.round(Math.sqrt(length));
+		return createFeature(name, categoryName, dictionary, getMeanColor(colorSums), averagePixels(sums, imageCount), size);
+	}
+	
+	/**
+	 * Feature container with the pyramid and hash of the mean image
+	 * 
+	 * @param name
+	 * @param categoryName
+	 * @param dictionary
+	 * @param meanColor
+	 * @param meanPixels packed RGB pixels of the mean image
+	 * @param size edge length of the mean image
+	 * @return
+	 */
+	private FeatureContainer createFeature(String name, String categoryName, CategoryDictionary dictionary, Color meanColor, int[] meanPixels, int size) {
+		int[] levels = ImagePyramid.levels(size);
+		int[][] pyramid = ImagePyramid.build(meanPixels, size, size, levels);
+		
+		// hash of the finest pyramid level, it is already area averaged
+		long hash = PerceptualHash.dHash(pyramid[pyramid.length - 1], size, size);
+		return new FeatureContainer(name, categoryName, dictionary.intern(categoryName), meanColor, pyramid, hash);
+	}
+	
+	/**
+	 * Calculate the mean color of all given images. Or return PINK if there are no images.
+	 * Every pixel of every image has the same weight.
+	 * 
+	 * @param imageFiles
+	 * @return
+	 */
+	public Color getMeanColor(File ... imageFiles) {
+		return getMeanColor(getColorSums(imageFiles));
+	}
+	
+	/**
+	 * Mean color of the summed up colors or PINK if there are no pixels
+	 * 
+	 * @param colorSums see {@link #getColorSums(File...)}
+	 * @return
+	 */
+	public static Color getMeanColor(long[] colorSums) {
+		if(colorSums[3] == 0)
+			return Color.PINK;	// no images? return PINK
+		
+		int avrRed 		= (int)(colorSums[0] / colorSums[3]);
+		int avrGreen 	= (int)(colorSums[1] / colorSums[3]);
+		int avrBlue		= (int)(colorSums[2] / colorSums[3]);
+		return new Color((avrRed), (avrGreen), (avrBlue));
+	}
+	
+	/**
+	 * Sum up the colors of all pixels of all given images. Baseline JPEGs are averaged from
+	 * their DC coefficients without decoding them, see {@link JpegDcDecoder}. Images with 
+	 * more than {@link #TILED_EXTRACTION_THRESHOLD} pixels are never decoded at once, 
+	 * see {@link #sumColorsOfLargeImage(File, Dimension, long[])}.
+	 * 
+	 * @param imageFiles
+	 * @return red, green and blue sum and the number of pixels
+	 */
+	public long[] getColorSums(File ... imageFiles) {
+		long[] sums = new long[4];
+		for (File imgFile : imageFiles) {
+			try {
+				if(useJpegDC && JpegDcDecoder.sumColors(imgFile, sums))
+					continue;
+				
+				Dimension size = ImageDecoder.getInstance().getSize(imgFile);
+				if((long)size.width * size.height > TILED_EXTRACTION_THRESHOLD) {
+					sumColorsOfLargeImage(imgFile, size, sums);
+				} else {
+					// Read Image from file system into a pooled image
+					try (DecodedImage decodedImg = ImageDecoder.getInstance().decode(imgFile)) {
+						sumColors(decodedImg, sums);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return sums;
+	}
+	
+	/**
+	 * Adds the colors of all pixels to the red, green and blue sums and 
+	 * the number of pixels to the fourth element of the sums.
+	 * 
+	 * @param decodedImg
+	 * @param sums
+	 */
+	private static void sumColors(DecodedImage decodedImg, long[] sums) {
+		int width = decodedImg.getWidth();
+		int height = decodedImg.getHeight();
+		int[] pixels = getRowBuffer(width);
+		for(int y = 0; y < height; y++)
+			sumColors(decodedImg.getRGB(y, pixels), width, sums);
+	}
+	
+	/**
+	 * Adds the colors of a pixel row to the red, green and blue sums and 
+	 * the number of pixels to the fourth element of the sums.
+	 * 
+	 * @param pixels packed RGB values
+	 * @param width number of pixels in the row
+	 * @param sums
+	 */
+	private static void sumColors(int[] pixels, int width, long[] sums) {
+		
+		// sum up color per channel per pixel
+		long red = 0;
+		long green = 0;
+		long blue = 0;
+		for(int x = 0; x < width; x++) {
+			int rgb 	= pixels[x];
+			red 	+= (rgb >> 16) & 0xff; 
+			green 	+= (rgb >> 8) & 0xff;
+			blue 	+= rgb & 0xff;
+		}
+		
+		sums[0] += red;
+		sums[1] += green;
+		sums[2] += blue;
+		sums[3] += width;
+	}
+	
+	/**
+	 * Sums up the colors of a large image without decoding it at once. Regions of tiled 
+	 * images and of formats with random access are decoded in parallel. All other images 
+	 * are decoded in a single pass from top to bottom, only one row is in memory at a time. 
+	 * Interlaced images need all passes for every row, they are decoded in strips of full rows.
+	 * 
+	 * @param imgFile
+	 * @param size of the image
+	 * @param sums
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void sumColorsOfLargeImage(File imgFile, Dimension size, long[] sums) throws IOException, InterruptedException {
+		ImageDecoder decoder = ImageDecoder.getInstance();
+		
+		Dimension tileSize = decoder.getTileSize(imgFile);
+		if(tileSize != null) {
+			int regionWidth = Math.min(size.width, tileSize.width * Math.max(1, (int) Math.sqrt(REGION_PIXELS) / tileSize.width));
+			int regionHeight = (int) Math.min(size.height, tileSize.height * Math.max(1, REGION_PIXELS / regionWidth / tileSize.height));
+			long[] regionSums;
+			try {
+				regionSums = new RegionColorSums(imgFile, size, regionWidth, regionHeight).invoke();
+			} catch (UncheckedIOException e) {
+				if(e.getCause() instanceof InterruptedIOException)
+					throw new InterruptedException();
+				throw e.getCause();
+			}
+			for (int i = 0; i < sums.length; i++)
+				sums[i] += regionSums[i];
+			return;
+		}
+		
+		// sums per row, a later pass of a progressive image replaces the row
+		long[] rowSums = new long[size.height * 4];
+		if(decoder.readRows(imgFile, (y, pixels) -> {
+			long[] row = new long[4];
+			sumColors(pixels, pixels.length, row);
+			System.arraycopy(row, 0, rowSums, y * 4, 4);
+		})) {
+			for (int i = 0; i < rowSums.length; i++)
+				sums[i % 4] += rowSums[i];
+			return;
+		}
+		
+		int stripHeight = (int) Math.max(1, Math.min(size.height, REGION_PIXELS / size.width));
+		for (int y = 0; y < size.height; y += stripHeight) {
+			Rectangle region = new Rectangle(0, y, size.width, Math.min(stripHeight, size.height - y));
+			try (DecodedImage decodedStrip = decoder.decode(imgFile, region, 1)) {
+				sumColors(decodedStrip, sums);
+			}
+		}
+	}
+	
+	/**
+	 * Sums up the colors of a range of image regions, the range is split in halves 
+	 * until a single region is left. The regions are numbered row by row.
+	 */
+	private static class RegionColorSums extends RecursiveTask<long[]> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final File imgFile;
+		private final Dimension size;
+		private final int regionWidth;
+		private final int regionHeight;
+		private final int from;
+		private final int to;
+		
+		public RegionColorSums(File imgFile, Dimension size, int regionWidth, int regionHeight) {
+			this(imgFile, size, regionWidth, regionHeight, 0, ((size.width + regionWidth - 1) / regionWidth) * ((size.height + regionHeight - 1) / regionHeight));
+		}
+		
+		private RegionColorSums(File imgFile, Dimension size, int regionWidth, int regionHeight, int from, int to) {
+			this.imgFile = imgFile;
+			this.size = size;
+			this.regionWidth = regionWidth;
+			this.regionHeight = regionHeight;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected long[] compute() {
+			if(to - from > 1) {
+				int middle = (from + to) >>> 1;
+				RegionColorSums upper = new RegionColorSums(imgFile, size, regionWidth, regionHeight, middle, to);
+				upper.fork();
+				long[] sums = new RegionColorSums(imgFile, size, regionWidth, regionHeight, from, middle).compute();
+				long[] upperSums = upper.join();
+				for (int i = 0; i < sums.length; i++)
+					sums[i] += upperSums[i];
+				return sums;
+			}
+			
+			long[] sums = new long[4];
+			if(from == to)
+				return sums;
+			
+			int columns = (size.width + regionWidth - 1) / regionWidth;
+			int x = (from % columns) * regionWidth;
+			int y = (from / columns) * regionHeight;
+			Rectangle region = new Rectangle(x, y, Math.min(regionWidth, size.width - x), Math.min(regionHeight, size.height - y));
+			try (DecodedImage decodedRegion = ImageDecoder.getInstance().decode(imgFile, region, 1)) {
+				sumColors(decodedRegion, sums);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UncheckedIOException(new InterruptedIOException());
+			}
+			return sums;
+		}
+	}
+	
+	/**
+	 * Calculate the mean image of all given images. Or return NULL if there are no images.
+	 * Every image is resampled to the canonical grid first, the mean image has the size
+	 * of the grid. The pixel sums are accumulated image by image, only one decoded image 
+	 * is in memory at a time. Images with more than {@link #TILED_EXTRACTION_THRESHOLD} 
+	 * pixels are subsampled while decoding, so they have less pixels than the threshold.
+	 * 
+	 * @param imageFiles
+	 * @return
+	 */
+	public BufferedImage getMeanImage(File ... imageFiles) {
+
+		int width = gridSize;
+		int height = width;
+		long[] sums = new long[width * height * 3];
+		int[] grid = new int[width * height];
+		int imageCount = 0;
+		
+		for (int i = 0; i < imageFiles.length; i++) {
+			
+			// Read Image from file system into a pooled image
+			try (DecodedImage currentImg = decodeSubsampled(imageFiles[i])) {
+				resample(currentImg, width, grid);
+				addPixels(grid, sums);
+				imageCount++;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		
+		if(imageCount == 0)
+			return null;
+	
+		// Prepare new bufferdImage that can be used to add the avr Color per pixel later on
+		BufferedImage average = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		average.setRGB(0, 0, width, height, averagePixels(sums, imageCount), 0, width);
+		
+		return average;
+	}
+	
+	/**
+	 * Sum up the color per channel per pixel
+	 * 
+	 * @param pixels packed RGB pixels
+	 * @param sums red, green and blue sum of every pixel
+	 */
+	private static void addPixels(int[] pixels, long[] sums) {
+		for (int pos = 0; pos < pixels.length; pos++) {
+			int crntRGB = pixels[pos];
+			sums[pos * 3] 		+= (crntRGB >> 16) & 0xff;
+			sums[pos * 3 + 1] 	+= (crntRGB >> 8) & 0xff;
+			sums[pos * 3 + 2] 	+= (crntRGB >> 0) & 0xff;
+		}
+	}
+	
+	/**
+	 * Calculate the mean color per pixel
+	 * 
+	 * @param sums red, green and blue sum of every pixel
+	 * @param imageCount number of summed up images
+	 * @return packed RGB pixels
+	 */
+	private int[] averagePixels(long[] sums, int imageCount) {
+		int avrPixels[] = new int[sums.length / 3];
+		for (int pixelPointer = 0; pixelPointer < avrPixels.length; pixelPointer++) {
+			
+			// Calculate average per pixel
+			int avrRed 		= preventColorOverflow((int)(sums[pixelPointer * 3] / imageCount));
+			int avrGreen 	= preventColorOverflow((int)(sums[pixelPointer * 3 + 1] / imageCount));
+			int avrBlue 	= preventColorOverflow((int)(sums[pixelPointer * 3 + 2] / imageCount));
+						
+			avrPixels[pixelPointer] =  (avrRed << 16) | (avrGreen << 8) | avrBlue;
+		}
+		return avrPixels;
+	}
+	
+	/**
+	 * Area averaging of a decoded image to a size x size grid, the same box filter as
+	 * {@link ImagePyramid#downscale(int[], int, int, int)}. The image is read row by row,
+	 * only the sums of one grid row are in memory.
+	 * 
+	 * @param image
+	 * @param size edge length of the grid
+	 * @param grid packed RGB pixels of the result
+	 */
+	private void resample(DecodedImage image, int size, int[] grid) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels = getRowBuffer(width);
+		long[] rowSums = new long[size * 3];
+		
+		// columns covered by each grid cell
+		int[] x0 = new int[size];
+		int[] x1 = new int[size];
+		for (int tx = 0; tx < size; tx++) {
+			x0[tx] = tx * width / size;
+			x1[tx] = Math.max(x0[tx] + 1, (tx + 1) * width / size);
+		}
+		
+		for (int ty = 0; ty < size; ty++) {
+			int y0 = ty * height / size;
+			int y1 = Math.max(y0 + 1, (ty + 1) * height / size);
+			
+			Arrays.fill(rowSums, 0);
+			for (int y = y0; y < y1; y++) {
+				image.getRGB(y, pixels);
+				for (int tx = 0; tx < size; tx++) {
+					long red = 0, green = 0, blue = 0;
+					for (int x = x0[tx]; x < x1[tx]; x++) {
+						int rgb = pixels[x];
+						red 	+= (rgb >> 16) & 0xff;
+						green 	+= (rgb >> 8) & 0xff;
+						blue 	+= rgb & 0xff;
+					}
+					rowSums[tx * 3] 	+= red;
+					rowSums[tx * 3 + 1] += green;
+					rowSums[tx * 3 + 2] += blue;
+				}
+			}
+			
+			for (int tx = 0; tx < size; tx++) {
+				long count = (long)(y1 - y0) * (x1[tx] - x0[tx]);
+				grid[ty * size + tx] = (int)(rowSums[tx * 3] / count) << 16 | (int)(rowSums[tx * 3 + 1] / count) << 8 | (int)(rowSums[tx * 3 + 2] / count);
+			}
+		}
+	}
+	
+	/**
+	 * Edge length of the canonical grid, used by all following extractions
+	 * 
+	 * @param gridSize
+	 */
+	public void setGridSize(int gridSize) {
+		this.gridSize = gridSize;
+	}
+	
+	public int getGridSize() {
+		return gridSize;
+	}
+	
+	/**
+	 * Calculate the mean color of baseline JPEGs from their DC coefficients 
+	 * instead of decoding them. Enabled by default.
+	 * 
+	 * @param useJpegDC
+	 */
+	public void setJpegDC(boolean useJpegDC) {
+		this.useJpegDC = useJpegDC;
+	}
+	
+	/**
+	 * Decode an image, every n-th pixel of images bigger than {@link #TILED_EXTRACTION_THRESHOLD}
+	 * 
+	 * @param imageFile
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private DecodedImage decodeSubsampled(File imageFile) throws IOException, InterruptedException {
+		Dimension size = ImageDecoder.getInstance().getSize(imageFile);
+		int subsampling = (int) Math.ceil(Math.sqrt((double)size.width * size.height / TILED_EXTRACTION_THRESHOLD));
+		return ImageDecoder.getInstance().decode(imageFile, null, Math.max(1, subsampling));
+	}
+	
+	/**
+	 * Pixel row buffer of the current thread with at least the given length
+	 * 
+	 * @param length
+	 * @return
+	 */
+	private static int[] getRowBuffer(int length) {
+		int[] buffer = rowBuffer.get();
+		if(buffer.length < length) {
+			buffer = new int[length];
+			rowBuffer.set(buffer);
+		}
+		return buffer;
+	}
+	
+	private int preventColorOverflow(int singleColor) {
+		int fixedColor = singleColor;
+		if (singleColor > 255) {
+			fixedColor = 255;
+			System.out.println("Given Color("+singleColor+") greater than 255, set to 255");
+		} else if(singleColor<0) {
+			fixedColor = 0;
+			System.out.println("Given Color("+singleColor+") smaller than 0, set to 0");
+		}
+		return fixedColor;
+	}
+}
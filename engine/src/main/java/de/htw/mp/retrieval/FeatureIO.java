@@ -0,0 +1,111 @@
+package de.htw.mp.retrieval;
+
+import java.awt.Color;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import de.htw.mp.model.CategoryDictionary;
+import de.htw.mp.model.FeatureContainer;
+
+/**
+ * Binary encoding of feature containers
+ * 
+ * @author Nico Hezel
+ */
+public class FeatureIO {
+
+	/**
+	 * Write all features of the container
+	 * 
+	 * @param out
+	 * @param feature
+	 * @throws IOException
+	 */
+	public static void writeFeature(DataOutput out, FeatureContainer feature) throws IOException {
+		writeFeature(out, feature, feature.getMeanImagePyramid());
+	}
+	
+	/**
+	 * Write all features of the container with a pyramid which was already read
+	 * 
+	 * @param out
+	 * @param feature
+	 * @param pyramid mean image pyramid of the feature
+	 * @throws IOException
+	 */
+	public static void writeFeature(DataOutput out, FeatureContainer feature, int[][] pyramid) throws IOException {
+		out.writeUTF(feature.getName());
+		out.writeUTF(feature.getCategory());
+		out.writeInt(feature.getMeanColor().getRGB());
+		writePyramid(out, pyramid);
+		out.writeLong(feature.getPerceptualHash());
+	}
+	
+	/**
+	 * Read a feature container written by {@link #writeFeature(DataOutput, FeatureContainer)}
+	 * 
+	 * @param in
+	 * @param dictionary assigns the category id
+	 * @return
+	 * @throws IOException
+	 */
+	public static FeatureContainer readFeature(DataInput in, CategoryDictionary dictionary) throws IOException {
+		String name = in.readUTF();
+		int categoryId = dictionary.intern(in.readUTF());
+		String category = dictionary.getName(categoryId);
+		Color meanColor = new Color(in.readInt());
+		int[][] pyramid = readPyramid(in);
+		long hash = in.readLong();
+		
+		return new FeatureContainer(name, category, categoryId, meanColor, pyramid, hash);
+	}
+	
+	/**
+	 * Write the RGB pixels of every level of a mean image pyramid
+	 * 
+	 * @param out
+	 * @param pyramid
+	 * @throws IOException
+	 */
+	public static void writePyramid(DataOutput out, int[][] pyramid) throws IOException {
+		out.writeInt(pyramid.length);
+		for (int[] level : pyramid) 
+			writePixels(out, level);
+	}
+	
+	/**
+	 * Read a pyramid written by {@link #writePyramid(DataOutput, int[][])}
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static int[][] readPyramid(DataInput in) throws IOException {
+		int[][] pyramid = new int[in.readInt()][];
+		for (int i = 0; i < pyramid.length; i++) 
+			pyramid[i] = readPixels(in);
+		return pyramid;
+	}
+	
+	private static void writePixels(DataOutput out, int[] pixels) throws IOException {
+		byte[] bytes = new byte[pixels.length * 3];
+		for (int i = 0, b = 0; i < pixels.length; i++) {
+			int rgb = pixels[i];
+			bytes[b++] = (byte)(rgb >> 16);
+			bytes[b++] = (byte)(rgb >> 8);
+			bytes[b++] = (byte)rgb;
+		}
+		out.writeInt(pixels.length);
+		out.write(bytes);
+	}
+	
+	private static int[] readPixels(DataInput in) throws IOException {
+		int[] pixels = new int[in.readInt()];
+		byte[] bytes = new byte[pixels.length * 3];
+		in.readFully(bytes);
+		for (int i = 0, b = 0; i < pixels.length; i++, b += 3) 
+			pixels[i] = (bytes[b] & 0xff) << 16 | (bytes[b + 1] & 0xff) << 8 | (bytes[b + 2] & 0xff);
+		return pixels;
+	}
+}
@@ -0,0 +1,667 @@
+package de.htw.mp.retrieval;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.htw.mp.model.FeatureContainer;
+import de.htw.mp.model.MeanImagePager;
+
+/**
+ * Keeps the feature data of a dataset within a memory budget. The bytes of
+ * every registered feature container are tracked. If the budget is exceeded,
+ * the mean image pyramids which were not accessed for the longest time are
+ * spilled to a temporary file until the memory usage drops below 90% of the
+ * budget. Spilled pyramids are paged in again when they are accessed.
+ * 
+ * Pyramids never change, every pyramid is written to the file only once.
+ * Pyramids of features which are gone are removed when the file is compacted.
+ * The time of the last access is only sampled for pyramids in memory, but 
+ * always updated when a pyramid is paged in.
+ * 
+ * @author Nico Hezel
+ */
+public class FeatureStore implements MeanImagePager {
+
+	/**
+	 * Budget in MB of the system property "datasetviewer.featureBudget", half of the heap by default
+	 */
+	public static final long DEFAULT_BUDGET = Long.getLong("datasetviewer.featureBudget", Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024)) * 1024 * 1024;
+
+	/**
+	 * Spilling stops below this fraction of the budget
+	 */
+	private static final double LOW_WATERMARK = 0.9;
+
+	/**
+	 * The spill file is compacted when it is twice as large as after the last compaction
+	 */
+	private static final long MIN_COMPACTION_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * One of this many accesses to a pyramid in memory updates its time of the last access
+	 */
+	private static final int ACCESS_SAMPLING = 16;
+
+	/**
+	 * Pager of features whose spilled pyramids were dropped by {@link FeatureStore#clear()}
+	 */
+	private static final MeanImagePager CLEARED = new MeanImagePager() {
+
+		@Override
+		public void touched(FeatureContainer feature) {
+		}
+
+		@Override
+		public int[][] pageIn(FeatureContainer feature) {
+			throw new IllegalStateException("The mean image pyramid of " + feature.getName() + " was spilled and the feature store has been cleared");
+		}
+	};
+
+	/**
+	 * Object layout of the JVM, references are compressed for heaps below 32GB
+	 */
+	private static final boolean COMPRESSED_REFERENCES = Runtime.getRuntime().maxMemory() < 32L * 1024 * 1024 * 1024;
+	private static final int REFERENCE = COMPRESSED_REFERENCES ? 4 : 8;
+	private static final int OBJECT_HEADER = COMPRESSED_REFERENCES ? 12 : 16;
+	private static final int ARRAY_HEADER = COMPRESSED_REFERENCES ? 16 : 24;
+	private static final int ALIGNMENT = 8;
+
+	/**
+	 * Latin-1 strings use one byte per character since Java 9
+	 */
+	private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+
+	/**
+	 * Tracked state of a feature container
+	 */
+	private static class Entry {
+		long featureBytes;
+		final long pyramidBytes;
+		final long generation;
+		volatile long lastAccess = System.nanoTime();
+		volatile long offset = -1;
+		int length;
+
+		Entry(long pyramidBytes, long generation) {
+			this.pyramidBytes = pyramidBytes;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Memory of an entry and its node in the map of all entries
+	 */
+	private static final long ENTRY_BYTES = align(OBJECT_HEADER + 5 * Long.BYTES + Integer.BYTES) + align(OBJECT_HEADER + Integer.BYTES + 3 * REFERENCE) + REFERENCE;
+
+	private final Map<FeatureContainer, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Released features whose pyramids are only in the spill file
+	 */
+	private final Map<FeatureContainer, Entry> released = Collections.synchronizedMap(new WeakHashMap<>());
+	private volatile long budget;
+
+	/**
+	 * Bytes of all features in memory
+	 */
+	private final AtomicLong memoryUsage = new AtomicLong();
+
+	/**
+	 * The features without their pyramids exceed the budget, only the
+	 * pyramid which caused the overflow is spilled instead of searching
+	 * all features for the coldest ones.
+	 */
+	private volatile boolean saturated;
+
+	/**
+	 * Spill file, created on the first spill. Reads hold the read lock,
+	 * the compaction which moves the pyramids holds the write lock.
+	 */
+	private FileChannel spillFile;
+	private volatile long spillFileSize;
+	private long compactionSize = MIN_COMPACTION_SIZE;
+	private final ReadWriteLock spillLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Incremented by {@link #clear()}, entries of older generations have no spill file anymore
+	 */
+	private volatile long generation;
+
+	/**
+	 * Statistics
+	 */
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final AtomicLong spills = new AtomicLong();
+	private final AtomicLong spilledBytes = new AtomicLong();
+	private final AtomicLong pagedInBytes = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+
+	/**
+	 * @param budget in bytes
+	 */
+	public FeatureStore(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Track the memory of the feature container and spill pyramids if the budget is exceeded
+	 * 
+	 * @param feature
+	 */
+	public void register(FeatureContainer feature) {
+		Entry entry = new Entry(pyramidBytes(feature.getResidentMeanImagePyramid()), generation);
+		entry.featureBytes = featureBytes(feature);
+		entries.put(feature, entry);
+		memoryUsage.addAndGet(entry.featureBytes + entry.pyramidBytes);
+		feature.setPager(this);
+		enforceBudget(feature);
+	}
+
+	/**
+	 * Track the new size of a registered feature container, e.g. after an embedding was added
+	 * 
+	 * @param feature
+	 */
+	public void update(FeatureContainer feature) {
+		Entry entry = entries.get(feature);
+		if(entry == null)
+			return;
+		synchronized (entry) {
+			long featureBytes = featureBytes(feature);
+			memoryUsage.addAndGet(featureBytes - entry.featureBytes);
+			entry.featureBytes = featureBytes;
+		}
+		enforceBudget(feature);
+	}
+
+	/**
+	 * Stop tracking the feature container, e.g. after it was replaced by a new version
+	 * of the dataset. A spilled pyramid stays in the spill file and is still read on
+	 * access, but is not kept in memory anymore.
+	 * 
+	 * @param feature
+	 */
+	public void release(FeatureContainer feature) {
+		synchronized (feature) {
+			Entry entry = entries.remove(feature);
+			if(entry == null)
+				return;
+
+			int[][] pyramid = feature.getResidentMeanImagePyramid();
+			memoryUsage.addAndGet(-entry.featureBytes - (pyramid == null ? 0 : entry.pyramidBytes));
+			if(pyramid == null)
+				released.put(feature, entry);
+			else
+				feature.setPager(null);
+		}
+	}
+
+	/**
+	 * Remove the pyramid of a registered feature container from memory, e.g. after
+	 * an embedding took its place in the search. It is paged in again on access.
+	 * 
+	 * @param feature
+	 */
+	public synchronized void spill(FeatureContainer feature) {
+		Entry entry = entries.get(feature);
+		if(entry != null)
+			spill(feature, entry);
+		compactIfNeeded();
+	}
+
+	/**
+	 * Pyramid of the feature container, a spilled pyramid is read from the spill
+	 * file without keeping it in memory. Copies all pyramids, e.g. into a session
+	 * snapshot, without paging them in.
+	 * 
+	 * @param feature
+	 * @return
+	 */
+	public int[][] readMeanImagePyramid(FeatureContainer feature) {
+		Entry entry = entries.get(feature);
+		if(entry == null || entry.offset < 0)
+			return feature.getMeanImagePyramid();
+
+		int[][] pyramid = feature.getResidentMeanImagePyramid();
+		if(pyramid != null)
+			return pyramid;
+		try {
+			return read(entry);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public void touched(FeatureContainer feature) {
+		hits.increment();
+		if(ThreadLocalRandom.current().nextInt(ACCESS_SAMPLING) != 0)
+			return;
+		Entry entry = entries.get(feature);
+		if(entry != null)
+			entry.lastAccess = System.nanoTime();
+	}
+
+	@Override
+	public int[][] pageIn(FeatureContainer feature) {
+		Entry entry = entries.get(feature);
+		if(entry == null)
+			return pageInReleased(feature);
+		if(entry.offset < 0)
+			return feature.getResidentMeanImagePyramid();
+
+		int[][] pyramid;
+		synchronized (feature) {
+			pyramid = feature.getResidentMeanImagePyramid();
+			if(pyramid != null) {
+				hits.increment();
+				return pyramid;
+			}
+
+			try {
+				pyramid = read(entry);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+			feature.setMeanImagePyramid(pyramid);
+			entry.lastAccess = System.nanoTime();
+			memoryUsage.addAndGet(entry.pyramidBytes);
+			pagedInBytes.addAndGet(entry.pyramidBytes);
+			misses.increment();
+		}
+
+		enforceBudget(feature);
+		return pyramid;
+	}
+
+	/**
+	 * Read the pyramid of a released feature container without keeping it in memory
+	 * 
+	 * @param feature
+	 * @return
+	 */
+	private int[][] pageInReleased(FeatureContainer feature) {
+		Entry entry = released.get(feature);
+		if(entry == null)
+			return feature.getResidentMeanImagePyramid();
+
+		try {
+			misses.increment();
+			return read(entry);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Spills the coldest pyramids until the memory usage is below the low watermark.
+	 * If that is not possible, only the pyramid of the given feature is spilled by
+	 * all following calls until the memory usage drops below the low watermark.
+	 * 
+	 * @param feature which was just added or paged in, NULL to search all features
+	 */
+	private void enforceBudget(FeatureContainer feature) {
+		long target = (long)(budget * LOW_WATERMARK);
+		long usage = memoryUsage.get();
+		if(usage <= budget) {
+			if(saturated && usage <= target)
+				saturated = false;
+			return;
+		}
+
+		synchronized (this) {
+			if(memoryUsage.get() <= budget)
+				return;
+
+			if(saturated && feature != null) {
+				Entry entry = entries.get(feature);
+				if(entry != null)
+					spill(feature, entry);
+				compactIfNeeded();
+				return;
+			}
+
+			// pyramids in memory, the coldest first
+			List<Map.Entry<FeatureContainer, Entry>> resident = new ArrayList<>();
+			for (Map.Entry<FeatureContainer, Entry> e : entries.entrySet())
+				if(e.getKey().getResidentMeanImagePyramid() != null)
+					resident.add(e);
+			resident.sort((e1, e2) -> Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess));
+
+			for (int i = 0; i < resident.size() && memoryUsage.get() > target; i++)
+				if(!spill(resident.get(i).getKey(), resident.get(i).getValue()))
+					break;
+
+			if(memoryUsage.get() > target)
+				saturated = true;
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * Remove the pyramid of the feature from memory, it is written to the spill file if needed
+	 * 
+	 * @param feature
+	 * @param entry
+	 * @return false if the spill file could not be written
+	 */
+	private boolean spill(FeatureContainer feature, Entry entry) {
+		synchronized (feature) {
+			int[][] pyramid = feature.getResidentMeanImagePyramid();
+			if(pyramid == null || entries.get(feature) != entry)
+				return true;
+			try {
+				if(entry.offset < 0)
+					write(entry, pyramid);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			feature.setMeanImagePyramid(null);
+			memoryUsage.addAndGet(-entry.pyramidBytes);
+			spills.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * Append the pyramid to the spill file and remember its position in the entry
+	 * 
+	 * @param entry
+	 * @param pyramid
+	 * @throws IOException
+	 */
+	private void write(Entry entry, int[][] pyramid) throws IOException {
+		if(spillFile == null)
+			spillFile = createSpillFile();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			FeatureIO.writePyramid(out, pyramid);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+		long end = spillFileSize;
+		while(buffer.hasRemaining())
+			end += spillFile.write(buffer, end);
+		entry.length = buffer.capacity();
+		entry.offset = spillFileSize;
+		spillFileSize = end;
+		spilledBytes.addAndGet(buffer.capacity());
+	}
+
+	/**
+	 * Read a pyramid from the spill file
+	 * 
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 * @throws IllegalStateException if the store was cleared after the pyramid was spilled
+	 */
+	private int[][] read(Entry entry) throws IOException {
+		spillLock.readLock().lock();
+		try {
+			if(entry.generation != generation)
+				throw new IllegalStateException("The mean image pyramid was spilled and the feature store has been cleared");
+			ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+			long position = entry.offset;
+			while(buffer.hasRemaining()) {
+				int read = spillFile.read(buffer, position + buffer.position());
+				if(read < 0)
+					throw new IOException("Unexpected end of the spill file");
+			}
+			return FeatureIO.readPyramid(new DataInputStream(new ByteArrayInputStream(buffer.array())));
+		} finally {
+			spillLock.readLock().unlock();
+		}
+	}
+
+	private static FileChannel createSpillFile() throws IOException {
+		Path file = Files.createTempFile("datasetviewer-features", ".spill");
+		file.toFile().deleteOnExit();
+		return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	/**
+	 * Copy the pyramids of all registered and still referenced released features
+	 * to a new spill file, if the file has doubled since the last compaction.
+	 */
+	private void compactIfNeeded() {
+		if(spillFileSize <= compactionSize)
+			return;
+
+		List<Entry> live = new ArrayList<>(entries.values());
+		synchronized (released) {
+			live.addAll(released.values());
+		}
+
+		spillLock.writeLock().lock();
+		try {
+			FileChannel compacted = createSpillFile();
+			long size = 0;
+			for (Entry entry : live) {
+				if(entry.offset < 0)
+					continue;
+				for (long copied = 0; copied < entry.length; )
+					copied += spillFile.transferTo(entry.offset + copied, entry.length - copied, compacted);
+				entry.offset = size;
+				size += entry.length;
+			}
+			spillFile.close();
+			spillFile = compacted;
+			spillFileSize = size;
+			compactionSize = Math.max(MIN_COMPACTION_SIZE, size * 2);
+			compactions.incrementAndGet();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			spillLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Memory of a mean image pyramid
+	 * 
+	 * @param pyramid
+	 * @return
+	 */
+	private static long pyramidBytes(int[][] pyramid) {
+		if(pyramid == null)
+			return 0;
+		long bytes = align(ARRAY_HEADER + (long)pyramid.length * REFERENCE);
+		for (int[] level : pyramid)
+			bytes += align(ARRAY_HEADER + (long)level.length * Integer.BYTES);
+		return bytes;
+	}
+
+	/**
+	 * Memory of all features except the mean image pyramid, including the tracking entry.
+	 * The category name is shared by all features of the category and not counted.
+	 * 
+	 * @param feature
+	 * @return
+	 */
+	private static long featureBytes(FeatureContainer feature) {
+		long bytes = ENTRY_BYTES;
+		bytes += align(OBJECT_HEADER + 6 * REFERENCE + Integer.BYTES + Long.BYTES); // container
+		bytes += stringBytes(feature.getName());
+		bytes += align(OBJECT_HEADER + 3 * REFERENCE + 2 * Integer.BYTES); // mean color
+
+		float[] embedding = feature.getEmbedding();
+		if(embedding != null)
+			bytes += align(ARRAY_HEADER + (long)embedding.length * Float.BYTES);
+		return bytes;
+	}
+
+	/**
+	 * Memory of a string and its character array
+	 * 
+	 * @param text
+	 * @return
+	 */
+	private static long stringBytes(String text) {
+		int bytesPerChar = COMPACT_STRINGS ? 1 : 2;
+		if(COMPACT_STRINGS)
+			for (int i = 0; i < text.length() && bytesPerChar == 1; i++)
+				if(text.charAt(i) > 0xff)
+					bytesPerChar = 2;
+		return align(OBJECT_HEADER + REFERENCE + Integer.BYTES + 2) + align(ARRAY_HEADER + (long)text.length() * bytesPerChar);
+	}
+
+	/**
+	 * Objects occupy a multiple of 8 bytes
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	private static long align(long bytes) {
+		return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	/**
+	 * Forget all features and spilled pyramids. Features which still have their pyramid
+	 * in memory keep it, all others throw an IllegalStateException on the next access.
+	 */
+	public synchronized void clear() {
+		List<FeatureContainer> features = new ArrayList<>(entries.keySet());
+		synchronized (released) {
+			features.addAll(released.keySet());
+		}
+		for (FeatureContainer feature : features) {
+			synchronized (feature) {
+				feature.setPager(feature.getResidentMeanImagePyramid() == null ? CLEARED : null);
+			}
+		}
+
+		entries.clear();
+		released.clear();
+		memoryUsage.set(0);
+		saturated = false;
+		spillLock.writeLock().lock();
+		try {
+			generation++;
+			spillFileSize = 0;
+			compactionSize = MIN_COMPACTION_SIZE;
+			if(spillFile != null)
+				spillFile.truncate(0);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			spillLock.writeLock().unlock();
+		}
+		hits.reset();
+		misses.reset();
+		spills.set(0);
+		spilledBytes.set(0);
+		pagedInBytes.set(0);
+		compactions.set(0);
+	}
+
+	/**
+	 * @param budget in bytes
+	 */
+	public void setBudget(long budget) {
+		this.budget = budget;
+		saturated = false;
+		enforceBudget(null);
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return bytes of all features in memory
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage.get();
+	}
+
+	/**
+	 * @return true if the features without their pyramids exceed the budget
+	 */
+	public boolean isSaturated() {
+		return saturated;
+	}
+
+	/**
+	 * Fraction of pyramid accesses which did not need to read the spill file
+	 * 
+	 * @return
+	 */
+	public double getHitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return (total == 0) ? 1 : (double)hitCount / total;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of pyramids removed from memory
+	 */
+	public long getSpills() {
+		return spills.get();
+	}
+
+	/**
+	 * @return bytes written to the spill file
+	 */
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+	/**
+	 * @return bytes of pyramids paged in again
+	 */
+	public long getPagedInBytes() {
+		return pagedInBytes.get();
+	}
+
+	/**
+	 * @return current size of the spill file
+	 */
+	public long getSpillFileSize() {
+		return spillFileSize;
+	}
+
+	public long getCompactions() {
+		return compactions.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("FeatureStore: %d/%d KB%s, %d hits, %d misses (%.0f%% hit rate), %d spills, %d KB spilled, %d KB paged in, %d KB spill file after %d compactions",
+				getMemoryUsage() / 1024, budget / 1024, saturated ? " (saturated)" : "", getHits(), getMisses(), getHitRate() * 100, getSpills(),
+				getSpilledBytes() / 1024, getPagedInBytes() / 1024, getSpillFileSize() / 1024, getCompactions());
+	}
+}
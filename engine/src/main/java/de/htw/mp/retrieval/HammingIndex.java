@@ -0,0 +1,144 @@
+package de.htw.mp.retrieval;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import de.htw.mp.model.FeatureContainer;
+
+/**
+ * Multi index hashing of the perceptual hashes. Every 64 bit hash is split
+ * into four 16 bit segments and each segment is indexed in its own table.
+ * If two hashes differ in at most r bits, at least one of their segments
+ * differs in at most r/4 bits (pigeonhole principle). A radius search therefore
+ * only probes the segment values close to the query instead of all hashes.
+ * 
+ * @author Nico Hezel
+ */
+public class HammingIndex {
+
+	private static final int SEGMENTS = 4;
+	private static final int SEGMENT_BITS = 16;
+	private static final int SEGMENT_VALUES = 1 << SEGMENT_BITS;
+
+	private final FeatureContainer[] features;
+	private final long[] hashes;
+
+	/**
+	 * Per segment: the positions of all hashes sorted by their segment value
+	 * and the start offset of every segment value in this list
+	 */
+	private final int[][] offsets = new int[SEGMENTS][];
+	private final int[][] positions = new int[SEGMENTS][];
+
+	public HammingIndex(FeatureContainer[] features) {
+		this.features = features;
+		this.hashes = new long[features.length];
+		for (int i = 0; i < features.length; i++)
+			hashes[i] = features[i].getPerceptualHash();
+
+		// counting sort of the positions by their segment value
+		for (int s = 0; s < SEGMENTS; s++) {
+			int[] offset = new int[SEGMENT_VALUES + 1];
+			for (long hash : hashes)
+				offset[segment(hash, s) + 1]++;
+			for (int v = 0; v < SEGMENT_VALUES; v++)
+				offset[v + 1] += offset[v];
+
+			int[] next = offset.clone();
+			int[] position = new int[hashes.length];
+			for (int i = 0; i < hashes.length; i++)
+				position[next[segment(hashes[i], s)]++] = i;
+
+			offsets[s] = offset;
+			positions[s] = position;
+		}
+	}
+
+	/**
+	 * All features whose hash differs in at most radius bits from the query hash,
+	 * sorted by their hamming distance
+	 * 
+	 * @param hash of the query
+	 * @param radius
+	 * @return
+	 */
+	public List<FeatureContainer> search(long hash, int radius) {
+		
+		// bucket the matches by their distance
+		List<List<FeatureContainer>> byDistance = new ArrayList<>(radius + 1);
+		for (int d = 0; d <= radius; d++)
+			byDistance.add(new ArrayList<FeatureContainer>());
+		for (int id : searchIds(hash, radius)) 
+			byDistance.get(PerceptualHash.distance(hash, hashes[id])).add(features[id]);
+
+		List<FeatureContainer> result = new ArrayList<>();
+		for (List<FeatureContainer> list : byDistance)
+			result.addAll(list);
+		return result;
+	}
+	
+	/**
+	 * Positions of all features whose hash differs in at most radius bits from 
+	 * the query hash, in no particular order. The costs depend on the number of
+	 * probed segment values and candidates, not on the size of the index.
+	 * 
+	 * @param hash of the query
+	 * @param radius
+	 * @return
+	 */
+	public int[] searchIds(long hash, int radius) {
+		IntStream.Builder result = IntStream.builder();
+		int segmentRadius = Math.min(radius / SEGMENTS, SEGMENT_BITS);
+		for (int s = 0; s < SEGMENTS; s++)
+			probe(s, segment(hash, s), 0, segmentRadius, hash, radius, result);
+		return result.build().toArray();
+	}
+
+	/**
+	 * Visit all segment values which differ in at most flips bits from the value,
+	 * only bits starting at the given one are flipped
+	 */
+	private void probe(int s, int value, int bit, int flips, long hash, int radius, IntStream.Builder result) {
+		int[] offset = offsets[s];
+		int[] position = positions[s];
+		int segmentRadius = Math.min(radius / SEGMENTS, SEGMENT_BITS);
+		
+		candidates: 
+		for (int p = offset[value]; p < offset[value + 1]; p++) {
+			int i = position[p];
+			if(PerceptualHash.distance(hash, hashes[i]) > radius)
+				continue;
+			
+			// the candidate was already found if one of the previous segments is close enough
+			for (int prev = 0; prev < s; prev++) 
+				if(Integer.bitCount(segment(hash, prev) ^ segment(hashes[i], prev)) <= segmentRadius)
+					continue candidates;
+			result.add(i);
+		}
+
+		if(flips == 0)
+			return;
+		for (int b = bit; b < SEGMENT_BITS; b++)
+			probe(s, value ^ (1 << b), b + 1, flips - 1, hash, radius, result);
+	}
+	
+	/**
+	 * @param id position in the index
+	 * @return
+	 */
+	public FeatureContainer getFeature(int id) {
+		return features[id];
+	}
+
+	private static int segment(long hash, int s) {
+		return (int)(hash >>> (s * SEGMENT_BITS)) & (SEGMENT_VALUES - 1);
+	}
+
+	/**
+	 * @return number of indexed hashes
+	 */
+	public int size() {
+		return hashes.length;
+	}
+}
@@ -0,0 +1,699 @@
+package de.htw.mp.retrieval;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes image files into pooled destination images. Every thread reuses 
+ * one image reader per format, the decoded pixels are written into an image 
+ * from a pool whose size is rounded up to the next bucket. The memory of all 
+ * decoded and pooled images is limited, pooled images are dropped from the 
+ * least recently used one when a decode needs their memory. Further decodes 
+ * block until enough decoded images have been closed. Images with a color 
+ * palette are not pooled, their palette is part of the image type.
+ * 
+ * @author Nico Hezel
+ */
+public class ImageDecoder {
+
+	/**
+	 * Width and height of the pooled images are multiples of this size
+	 */
+	private static final int BUCKET_SIZE = 128;
+	
+	/**
+	 * Shared decoder, limits the decoded and pooled memory to 256MB
+	 */
+	private static final ImageDecoder INSTANCE = new ImageDecoder(256 * 1024 * 1024);
+	
+	/**
+	 * All registered image reader providers
+	 */
+	private static final List<ImageReaderSpi> PROVIDERS = new ArrayList<>();
+	static {
+		IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true).forEachRemaining(PROVIDERS::add);
+	}
+	
+	/**
+	 * Image readers per format of the current thread
+	 */
+	private final ThreadLocal<Map<ImageReaderSpi, ImageReader>> readers = ThreadLocal.withInitial(HashMap::new);
+	
+	/**
+	 * Free destination images, the most recently released first. 
+	 * Free images keep the memory permits of their last decode.
+	 */
+	private final LinkedList<PooledImage> pool = new LinkedList<>();
+	
+	/**
+	 * Number of decodes waiting for memory, the pool does not keep images while they wait
+	 */
+	private int waitingDecodes = 0;
+	
+	/**
+	 * Decoded and pooled memory in kilobytes
+	 */
+	private final Semaphore memoryPermits;
+	private final int maxPermits;
+	
+	// statistics
+	private final AtomicInteger allocations = new AtomicInteger();
+	private final AtomicInteger reuses = new AtomicInteger();
+	
+	/**
+	 * @param memoryLimit maximal memory of all decoded images which are not closed yet and all pooled images in bytes
+	 */
+	public ImageDecoder(long memoryLimit) {
+		this.maxPermits = (int) Math.min(Integer.MAX_VALUE, memoryLimit / 1024);
+		this.memoryPermits = new Semaphore(maxPermits, true);
+	}
+	
+	/**
+	 * @return decoder shared by the whole application
+	 */
+	public static ImageDecoder getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Decode an image file. The returned image has to be closed after usage, 
+	 * afterwards its pixels get overwritten by other decodes.
+	 * 
+	 * @param imageFile
+	 * @return decoded image
+	 * @throws IOException if the file can not be read or has an unknown format
+	 * @throws InterruptedException while waiting for memory
+	 */
+	public DecodedImage decode(File imageFile) throws IOException, InterruptedException {
+		return decode(imageFile, null, 1);
+	}
+	
+	/**
+	 * Decode a region of an image file, optional only every n-th pixel in each direction.
+	 * The returned image has to be closed after usage, afterwards its pixels get 
+	 * overwritten by other decodes.
+	 * 
+	 * @param imageFile
+	 * @param region part of the image to decode, NULL for the whole image
+	 * @param subsampling read only every n-th column and row
+	 * @return decoded image
+	 * @throws IOException if the file can not be read or has an unknown format
+	 * @throws InterruptedException while waiting for memory
+	 */
+	public DecodedImage decode(File imageFile, Rectangle region, int subsampling) throws IOException, InterruptedException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+			ImageReader reader = getReader(imageFile, input);
+			try {
+				reader.setInput(input, true, true);
+				if(region == null)
+					region = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+				int width = (region.width + subsampling - 1) / subsampling;
+				int height = (region.height + subsampling - 1) / subsampling;
+				
+				// destination image of the bucket
+				ImageTypeSpecifier type = getImageType(reader);
+				BucketKey key = new BucketKey(type, roundUp(width), roundUp(height));
+				
+				BufferedImage destination = null;
+				try {
+					destination = acquire(key);
+					ImageReadParam param = reader.getDefaultReadParam();
+					param.setSourceRegion(region);
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+					param.setDestination(destination);
+					reader.read(0, param);
+					return new DecodedImage(destination, width, height, key);
+				} catch (IOException | RuntimeException e) {
+					if(destination != null)
+						release(key, destination);
+					throw e;
+				}
+			} finally {
+				reader.setInput(null);
+			}
+		}
+	}
+	
+	/**
+	 * Decode a whole image file in a single pass and hand every pixel row to the consumer.
+	 * Only the row the reader currently writes is kept in memory, the previous row is 
+	 * complete when the reader starts with the next one. Readers of progressive images 
+	 * might write all rows several times, every pass starts again with the first row. 
+	 * Readers which do not write the rows from top to bottom, e.g. for interlaced images, 
+	 * are stopped.
+	 * 
+	 * @param imageFile
+	 * @param rowConsumer
+	 * @return false if the rows are not written in order, the consumer might have got some rows already
+	 * @throws IOException if the file can not be read or has an unknown format
+	 */
+	public boolean readRows(File imageFile, RowConsumer rowConsumer) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+			ImageReader reader = getReader(imageFile, input);
+			try {
+				reader.setInput(input, true, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				RowBuffer rows = RowBuffer.create(getImageType(reader), width, height, rowConsumer);
+				if(rows == null)
+					return false;
+				
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setDestination(rows.getDestination());
+				try {
+					reader.read(0, param);
+				} catch (RowOrderException e) {
+					return false;
+				} catch (IIOException e) {
+					if(e.getCause() instanceof RowOrderException)
+						return false;
+					throw e;
+				}
+				return rows.finish();
+			} finally {
+				reader.setInput(null);
+			}
+		}
+	}
+	
+	/**
+	 * Size of the regions the reader of the image decodes without reading the image from 
+	 * the start, e.g. the tiles of a tiled image or single rows of an uncompressed image.
+	 * 
+	 * @param imageFile
+	 * @return NULL if a region can only be decoded together with everything above it
+	 * @throws IOException if the file can not be read or has an unknown format
+	 */
+	public Dimension getTileSize(File imageFile) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+			ImageReader reader = getReader(imageFile, input);
+			try {
+				reader.setInput(input, true, true);
+				if(reader.isImageTiled(0))
+					return new Dimension(reader.getTileWidth(0), reader.getTileHeight(0));
+				if(reader.isRandomAccessEasy(0))
+					return new Dimension(reader.getWidth(0), 1);
+				return null;
+			} finally {
+				reader.setInput(null);
+			}
+		}
+	}
+	
+	/**
+	 * Read the size of an image from its header without decoding the pixels
+	 * 
+	 * @param imageFile
+	 * @return width and height of the image
+	 * @throws IOException if the file can not be read or has an unknown format
+	 */
+	public Dimension getSize(File imageFile) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+			ImageReader reader = getReader(imageFile, input);
+			try {
+				reader.setInput(input, true, true);
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.setInput(null);
+			}
+		}
+	}
+	
+	/**
+	 * Reader for the opened image file
+	 * 
+	 * @param imageFile
+	 * @param input
+	 * @return 
+	 * @throws IOException if the file could not be opened or has an unknown format
+	 */
+	private ImageReader getReader(File imageFile, ImageInputStream input) throws IOException {
+		if(input == null)
+			throw new IOException("Can not open " + imageFile);
+		
+		ImageReader reader = getReader(input);
+		if(reader == null)
+			throw new IOException("Unknown image format " + imageFile);
+		return reader;
+	}
+	
+	/**
+	 * Reuses the reader of the current thread for the format of the input.
+	 * The format is detected by the registered reader providers, like ImageIO 
+	 * does, but without creating a new reader instance for every file.
+	 * 
+	 * @param input
+	 * @return NULL if there is no reader for the format
+	 * @throws IOException
+	 */
+	private ImageReader getReader(ImageInputStream input) throws IOException {
+		Map<ImageReaderSpi, ImageReader> threadReaders = readers.get();
+		for (ImageReaderSpi provider : PROVIDERS) {
+			if(provider.canDecodeInput(input)) {
+				ImageReader reader = threadReaders.get(provider);
+				if(reader == null) {
+					reader = provider.createReaderInstance();
+					threadReaders.put(provider, reader);
+				}
+				return reader;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Image type the reader decodes into, prefers the raw type of the file.
+	 * 
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	private static ImageTypeSpecifier getImageType(ImageReader reader) throws IOException {
+		ImageTypeSpecifier type = reader.getRawImageType(0);
+		if(type == null)
+			type = reader.getImageTypes(0).next();
+		return type;
+	}
+	
+	/**
+	 * Takes a free image of the bucket together with its memory permits. Otherwise 
+	 * the least recently used free images are dropped until the memory for a new 
+	 * image is available.
+	 * 
+	 * @param key
+	 * @return
+	 * @throws InterruptedException while waiting for memory
+	 */
+	private BufferedImage acquire(BucketKey key) throws InterruptedException {
+		int permits = permits(key);
+		synchronized (pool) {
+			for (Iterator<PooledImage> it = pool.iterator(); key.poolable && it.hasNext(); ) {
+				PooledImage pooled = it.next();
+				if(pooled.key.equals(key)) {
+					it.remove();
+					reuses.incrementAndGet();
+					return pooled.image;
+				}
+			}
+			
+			while(memoryPermits.availablePermits() < permits && !pool.isEmpty())
+				memoryPermits.release(permits(pool.removeLast().key));
+			waitingDecodes++;
+		}
+		
+		try {
+			memoryPermits.acquire(permits);
+		} finally {
+			synchronized (pool) {
+				waitingDecodes--;
+			}
+		}
+		allocations.incrementAndGet();
+		try {
+			return key.type.createBufferedImage(key.width, key.height);
+		} catch (RuntimeException e) {
+			memoryPermits.release(permits);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Keeps a closed image and its memory permits in the pool, unless 
+	 * another decode waits for memory or the image can not be pooled.
+	 * 
+	 * @param key
+	 * @param image
+	 */
+	private void release(BucketKey key, BufferedImage image) {
+		synchronized (pool) {
+			if(waitingDecodes == 0 && key.poolable) {
+				pool.addFirst(new PooledImage(key, image));
+				return;
+			}
+		}
+		memoryPermits.release(permits(key));
+	}
+	
+	/**
+	 * Drop all free images, e.g. after a dataset was loaded
+	 */
+	public void clearPool() {
+		synchronized (pool) {
+			while(!pool.isEmpty())
+				memoryPermits.release(permits(pool.removeFirst().key));
+		}
+	}
+	
+	/**
+	 * @return memory of all free images in bytes
+	 */
+	public long getPooledBytes() {
+		synchronized (pool) {
+			long permits = 0;
+			for (PooledImage pooled : pool)
+				permits += permits(pooled.key);
+			return permits * 1024;
+		}
+	}
+	
+	/**
+	 * Memory of a bucket image in kilobytes
+	 * 
+	 * @param key
+	 * @return
+	 */
+	private int permits(BucketKey key) {
+		return (int) Math.min(maxPermits, Math.max(1, (long)key.width * key.height * 4 / 1024));
+	}
+	
+	private static int roundUp(int size) {
+		return ((size + BUCKET_SIZE - 1) / BUCKET_SIZE) * BUCKET_SIZE;
+	}
+	
+	/**
+	 * @return number of destination images which had to be created
+	 */
+	public int getAllocations() {
+		return allocations.get();
+	}
+	
+	/**
+	 * @return number of decodes which reused a pooled destination image
+	 */
+	public int getReuses() {
+		return reuses.get();
+	}
+	
+	/**
+	 * Decoded pixels inside a pooled image. Only the upper left 
+	 * width x height pixels of the image belong to the file.
+	 */
+	public class DecodedImage implements AutoCloseable {
+		
+		private final BufferedImage image;
+		private final int width;
+		private final int height;
+		private final BucketKey key;
+		private boolean closed = false;
+		
+		private DecodedImage(BufferedImage image, int width, int height, BucketKey key) {
+			this.image = image;
+			this.width = width;
+			this.height = height;
+			this.key = key;
+		}
+		
+		/**
+		 * @return pooled image, can be bigger than the decoded file
+		 */
+		public BufferedImage getImage() {
+			return image;
+		}
+		
+		public int getWidth() {
+			return width;
+		}
+		
+		public int getHeight() {
+			return height;
+		}
+		
+		/**
+		 * Read the packed RGB values of a pixel row
+		 * 
+		 * @param y row
+		 * @param rgb array with at least width elements
+		 * @return the given array
+		 */
+		public int[] getRGB(int y, int[] rgb) {
+			return image.getRGB(0, y, width, 1, rgb, 0, width);
+		}
+
+		/**
+		 * Returns the image and its memory to the pool
+		 */
+		@Override
+		public void close() {
+			if(closed) return;
+			closed = true;
+			release(key, image);
+		}
+	}
+	
+	/**
+	 * Receives the decoded rows of {@link ImageDecoder#readRows(File, RowConsumer)}
+	 */
+	public static interface RowConsumer {
+		
+		/**
+		 * A row of a progressive image can be received several times, the last one is final.
+		 * 
+		 * @param y row
+		 * @param rgb packed RGB values of the row, the array is reused for the next row
+		 */
+		public void accept(int y, int[] rgb);
+	}
+	
+	/**
+	 * Thrown by a {@link RowBuffer} when a reader does not write the rows from top to bottom
+	 */
+	private static class RowOrderException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	/**
+	 * Destination pixels of a single pass decode, only the row the reader currently 
+	 * writes is stored in an image of one row. The elements of the other rows are mapped 
+	 * onto the same storage. When the reader starts with another row the current one 
+	 * is converted to RGB and handed to the consumer.
+	 */
+	private static class RowBuffer extends DataBuffer {
+		
+		private final int rowElements;
+		private final int height;
+		private final ColorModel colorModel;
+		private final SampleModel sampleModel;
+		private final BufferedImage row;
+		private final DataBuffer rowData;
+		private final int[] rgb;
+		private final RowConsumer rowConsumer;
+		private int currentRow = -1;
+		private int rowStart = 0;
+		private int rowEnd = 0;
+		
+		/**
+		 * @param type raw image type of the reader
+		 * @param width
+		 * @param height
+		 * @param rowConsumer
+		 * @return NULL if the sample model of the type is not supported or the image is too big
+		 */
+		public static RowBuffer create(ImageTypeSpecifier type, int width, int height, RowConsumer rowConsumer) {
+			SampleModel sampleModel = type.getSampleModel(width, height);
+			int rowElements;
+			if(sampleModel instanceof ComponentSampleModel)
+				rowElements = ((ComponentSampleModel) sampleModel).getScanlineStride();
+			else if(sampleModel instanceof MultiPixelPackedSampleModel)
+				rowElements = ((MultiPixelPackedSampleModel) sampleModel).getScanlineStride();
+			else if(sampleModel instanceof SinglePixelPackedSampleModel)
+				rowElements = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+			else 
+				return null;
+			if((long)rowElements * height > Integer.MAX_VALUE)
+				return null;
+			
+			// the elements of a row are stored with the same layout in the row image
+			BufferedImage row = type.createBufferedImage(width, 1);
+			DataBuffer rowData = row.getRaster().getDataBuffer();
+			if(rowData.getSize() < rowElements)
+				return null;
+			return new RowBuffer(sampleModel, type.getColorModel(), rowElements, height, row, rowConsumer);
+		}
+		
+		private RowBuffer(SampleModel sampleModel, ColorModel colorModel, int rowElements, int height, BufferedImage row, RowConsumer rowConsumer) {
+			super(sampleModel.getDataType(), rowElements * height, row.getRaster().getDataBuffer().getNumBanks());
+			this.rowElements = rowElements;
+			this.height = height;
+			this.colorModel = colorModel;
+			this.sampleModel = sampleModel;
+			this.row = row;
+			this.rowData = row.getRaster().getDataBuffer();
+			this.rgb = new int[row.getWidth()];
+			this.rowConsumer = rowConsumer;
+		}
+		
+		/**
+		 * @return destination image for the reader
+		 */
+		public BufferedImage getDestination() {
+			return new BufferedImage(colorModel, new RowRaster(sampleModel, this), colorModel.isAlphaPremultiplied(), null);
+		}
+		
+		/**
+		 * Hands the last row to the consumer
+		 * 
+		 * @return false if the reader did not write all rows
+		 */
+		public boolean finish() {
+			if(currentRow != height - 1)
+				return false;
+			consumeRow();
+			return true;
+		}
+		
+		private void consumeRow() {
+			row.getRGB(0, 0, rgb.length, 1, rgb, 0, rgb.length);
+			rowConsumer.accept(currentRow, rgb);
+		}
+		
+		/**
+		 * The reader starts with the next row, which completes the current one, 
+		 * or starts a new pass with the first row.
+		 * 
+		 * @param nextRow
+		 */
+		protected void startRow(int nextRow) {
+			if(nextRow == currentRow)
+				return;
+			if(nextRow != currentRow + 1 && nextRow != 0)
+				throw new RowOrderException();
+			if(currentRow >= 0)
+				consumeRow();
+			currentRow = nextRow;
+			rowStart = currentRow * rowElements;
+			rowEnd = rowStart + rowElements;
+		}
+		
+		/**
+		 * Index of the element inside the stored row
+		 * 
+		 * @param i element index of the whole image
+		 * @return
+		 */
+		private int column(int i) {
+			if(i < rowStart || i >= rowEnd)
+				startRow(i / rowElements);
+			return i - rowStart;
+		}
+		
+		@Override
+		public int getElem(int bank, int i) {
+			return rowData.getElem(bank, column(i));
+		}
+		
+		@Override
+		public void setElem(int bank, int i, int val) {
+			rowData.setElem(bank, column(i), val);
+		}
+	}
+	
+	/**
+	 * Raster of a {@link RowBuffer}. Rows and pixels the readers copy into the destination 
+	 * are written directly into the row image, all other writes go through the elements 
+	 * of the buffer.
+	 */
+	private static class RowRaster extends WritableRaster {
+		
+		private final RowBuffer rows;
+		
+		public RowRaster(SampleModel sampleModel, RowBuffer rows) {
+			super(sampleModel, rows, new Point());
+			this.rows = rows;
+		}
+		
+		@Override
+		public void setRect(int dx, int dy, Raster srcRaster) {
+			WritableRaster rowRaster = rows.row.getRaster();
+			for (int y = srcRaster.getMinY(); y < srcRaster.getMinY() + srcRaster.getHeight(); y++) {
+				if(y + dy < 0 || y + dy >= getHeight())
+					continue;
+				rows.startRow(y + dy);
+				rowRaster.setRect(dx, 0, srcRaster.createChild(srcRaster.getMinX(), y, srcRaster.getWidth(), 1, srcRaster.getMinX(), 0, null));
+			}
+		}
+		
+		@Override
+		public void setPixel(int x, int y, int[] iArray) {
+			rows.startRow(y);
+			rows.row.getRaster().setPixel(x, 0, iArray);
+		}
+	}
+	
+	/**
+	 * Free image of the pool
+	 */
+	private static class PooledImage {
+		
+		protected final BucketKey key;
+		protected final BufferedImage image;
+		
+		public PooledImage(BucketKey key, BufferedImage image) {
+			this.key = key;
+			this.image = image;
+		}
+	}
+	
+	/**
+	 * Pool bucket: image type and rounded size. The equality of image types ignores 
+	 * the palette of an IndexColorModel and the color space, e.g. of an embedded 
+	 * ICC profile. Images with a palette are not pooled, the color spaces are compared.
+	 */
+	private static class BucketKey {
+		
+		protected final ImageTypeSpecifier type;
+		protected final int width;
+		protected final int height;
+		protected final boolean poolable;
+		
+		public BucketKey(ImageTypeSpecifier type, int width, int height) {
+			this.type = type;
+			this.width = width;
+			this.height = height;
+			this.poolable = !(type.getColorModel() instanceof IndexColorModel);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof BucketKey)) return false;
+			BucketKey other = (BucketKey) obj;
+			return width == other.width && height == other.height && type.equals(other.type) && 
+					type.getColorModel().getColorSpace().equals(other.type.getColorModel().getColorSpace());
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, width, height);
+		}
+	}
+}
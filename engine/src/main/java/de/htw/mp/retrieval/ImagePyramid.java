@@ -0,0 +1,121 @@
+package de.htw.mp.retrieval;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Multi resolution representation of an image. Every level is a square 
+ * image stored as packed RGB integers, from the coarsest to the finest level.
+ * Levels are created by area averaging (box filter) the source image.
+ * 
+ * @author Nico Hezel
+ */
+public class ImagePyramid {
+
+	/**
+	 * Default edge length of the levels
+	 */
+	public static final int[] DEFAULT_LEVELS = { 4, 16, 64 };
+	
+	/**
+	 * Default levels which are coarser than the grid, followed by the grid itself
+	 * 
+	 * @param gridSize edge length of the canonical feature grid
+	 * @return edge length of each level
+	 */
+	public static int[] levels(int gridSize) {
+		return IntStream.concat(Arrays.stream(DEFAULT_LEVELS).filter(size -> size < gridSize), IntStream.of(gridSize)).toArray();
+	}
+	
+	/**
+	 * Build the levels of the image. The sizes have to be in ascending order.
+	 * 
+	 * @param image
+	 * @param sizes edge length of each level
+	 * @return packed RGB pixels per level
+	 */
+	public static int[][] build(BufferedImage image, int ... sizes) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		return build(image.getRGB(0, 0, width, height, null, 0, width), width, height, sizes);
+	}
+	
+	/**
+	 * Build the levels of an image given as packed RGB pixels. The sizes have to be in ascending order.
+	 * 
+	 * @param pixels packed RGB pixels
+	 * @param width
+	 * @param height
+	 * @param sizes edge length of each level
+	 * @return packed RGB pixels per level
+	 */
+	public static int[][] build(int[] pixels, int width, int height, int ... sizes) {
+		
+		// the finest level is computed from the image, all others from the next finer level
+		int[][] levels = new int[sizes.length][];
+		for (int i = sizes.length - 1; i >= 0; i--) {
+			levels[i] = downscale(pixels, width, height, sizes[i]);
+			pixels = levels[i];
+			width = height = sizes[i];
+		}
+		return levels;
+	}
+	
+	/**
+	 * Area averaging of an image to a size x size image. Every target pixel 
+	 * becomes the mean of all source pixels it covers. Images smaller than the
+	 * target size are upscaled by repeating their pixels.
+	 * 
+	 * @param pixels packed RGB pixels
+	 * @param width
+	 * @param height
+	 * @param size edge length of the result
+	 * @return packed RGB pixels
+	 */
+	public static int[] downscale(int[] pixels, int width, int height, int size) {
+		int[] result = new int[size * size];
+		for (int ty = 0; ty < size; ty++) {
+			int y0 = ty * height / size;
+			int y1 = Math.max(y0 + 1, (ty + 1) * height / size);
+			for (int tx = 0; tx < size; tx++) {
+				int x0 = tx * width / size;
+				int x1 = Math.max(x0 + 1, (tx + 1) * width / size);
+				
+				long red = 0, green = 0, blue = 0;
+				for (int y = y0; y < y1; y++) {
+					for (int x = x0; x < x1; x++) {
+						int rgb = pixels[y * width + x];
+						red 	+= (rgb >> 16) & 0xff;
+						green 	+= (rgb >> 8) & 0xff;
+						blue 	+= rgb & 0xff;
+					}
+				}
+				
+				long count = (long)(y1 - y0) * (x1 - x0);
+				result[ty * size + tx] = (int)(red / count) << 16 | (int)(green / count) << 8 | (int)(blue / count);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Mean euclidean color distance between the pixels of two images with the same size.
+	 * 
+	 * @param a packed RGB pixels
+	 * @param b packed RGB pixels
+	 * @return
+	 */
+	public static double distance(int[] a, int[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			int rgbA = a[i];
+			int rgbB = b[i];
+			int diffR = ((rgbA >> 16) & 0xff) - ((rgbB >> 16) & 0xff);
+			int diffG = ((rgbA >> 8) & 0xff) - ((rgbB >> 8) & 0xff);
+			int diffB = (rgbA & 0xff) - (rgbB & 0xff);
+			sum += Math.sqrt(diffR * diffR + diffG * diffG + diffB * diffB);
+		}
+		return sum / a.length;
+	}
+}
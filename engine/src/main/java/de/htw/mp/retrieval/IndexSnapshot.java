@@ -0,0 +1,169 @@
+package de.htw.mp.retrieval;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import de.htw.mp.model.FeatureContainer;
+
+/**
+ * Immutable version of the files and features of a dataset. Snapshots are
+ * built by the {@link DatasetIndex} and replaced as a whole, a reader which
+ * holds a snapshot always sees the files and features of a single version.
+ *
+ * Images are identified by their file id, see {@link #fileId(File)}, so images
+ * with the same name in different folders are different entries.
+ *
+ * @author Nico Hezel
+ */
+public class IndexSnapshot {
+
+	/**
+	 * Name of the synthetic category containing all image files
+	 */
+	public static final String ALL_CATEGORY = "All";
+	
+	/**
+	 * Snapshot without any files
+	 */
+	public static final IndexSnapshot EMPTY = new IndexSnapshot(0, Collections.singletonMap(ALL_CATEGORY, new File[0]),
+			Collections.<String, FeatureContainer>emptyMap(), Collections.<String, FeatureContainer>emptyMap(),
+			Collections.<String, FeatureContainer[]>emptyMap(), null, null);
+
+	private final long version;
+	private final Map<String, File[]> categoryFiles;
+	private final Map<String, FeatureContainer> imageFeatures;
+	private final Map<String, FeatureContainer> categoryFeatures;
+	private final Map<String, FeatureContainer[]> categoryImageFeatures;
+	private final FeatureContainer[] imageFeatureArray;
+	private final FeatureContainer[] categoryFeatureArray;
+	private final HammingIndex hammingIndex;
+	private final PCAProjection projection;
+
+	/**
+	 * The maps are owned by the snapshot and must not be changed afterwards
+	 * 
+	 * @param version
+	 * @param categoryFiles image files per category name, including "All"
+	 * @param imageFeatures image features per file id
+	 * @param categoryFeatures category features per category name
+	 * @param categoryImageFeatures image features per completed category
+	 * @param hammingIndex can be NULL
+	 * @param projection can be NULL
+	 */
+	public IndexSnapshot(long version, Map<String, File[]> categoryFiles, Map<String, FeatureContainer> imageFeatures,
+			Map<String, FeatureContainer> categoryFeatures, Map<String, FeatureContainer[]> categoryImageFeatures,
+			HammingIndex hammingIndex, PCAProjection projection) {
+		this.version = version;
+		this.categoryFiles = Collections.unmodifiableMap(categoryFiles);
+		this.imageFeatures = Collections.unmodifiableMap(imageFeatures);
+		this.categoryFeatures = Collections.unmodifiableMap(categoryFeatures);
+		this.categoryImageFeatures = Collections.unmodifiableMap(categoryImageFeatures);
+		this.imageFeatureArray = imageFeatures.values().toArray(new FeatureContainer[0]);
+		this.categoryFeatureArray = categoryFeatures.values().toArray(new FeatureContainer[0]);
+		this.hammingIndex = hammingIndex;
+		this.projection = projection;
+	}
+
+	/**
+	 * Stable id of an image file, its absolute and normalized path
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public static String fileId(File file) {
+		return file.toPath().toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * Increases with every published snapshot
+	 * 
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param categoryName
+	 * @return all image files of a category, sorted if the category is complete
+	 */
+	public File[] getFiles(String categoryName) {
+		File[] files = categoryFiles.get(categoryName);
+		return (files == null) ? new File[0] : files.clone();
+	}
+
+	/**
+	 * @return names of all categories, including "All"
+	 */
+	public Set<String> getCategoryNames() {
+		return categoryFiles.keySet();
+	}
+
+	/**
+	 * @param file
+	 * @return features of the image or NULL if they are not calculated yet
+	 */
+	public FeatureContainer getImageFeature(File file) {
+		return imageFeatures.get(fileId(file));
+	}
+
+	/**
+	 * @param fileId see {@link #fileId(File)}
+	 * @return features of the image or NULL if they are not calculated yet
+	 */
+	public FeatureContainer getImageFeature(String fileId) {
+		return imageFeatures.get(fileId);
+	}
+
+	/**
+	 * @return image features per file id
+	 */
+	public Map<String, FeatureContainer> getImageFeatureMap() {
+		return imageFeatures;
+	}
+
+	/**
+	 * @param categoryName
+	 * @return features of the category or NULL if they are not calculated yet
+	 */
+	public FeatureContainer getCategoryFeature(String categoryName) {
+		return categoryFeatures.get(categoryName);
+	}
+
+	/**
+	 * @return features of all images, the array is shared and must not be changed
+	 */
+	public FeatureContainer[] getImageFeatures() {
+		return imageFeatureArray;
+	}
+
+	/**
+	 * @return features of all categories, the array is shared and must not be changed
+	 */
+	public FeatureContainer[] getCategoryFeatures() {
+		return categoryFeatureArray;
+	}
+
+	/**
+	 * @return image features per completed category
+	 */
+	public Map<String, FeatureContainer[]> getCategoryImageFeatures() {
+		return categoryImageFeatures;
+	}
+
+	/**
+	 * @return index of the perceptual hashes of all images or NULL if the dataset is not loaded yet
+	 */
+	public HammingIndex getHammingIndex() {
+		return hammingIndex;
+	}
+
+	/**
+	 * @return projection of the mean images or NULL if it is not fitted yet
+	 */
+	public PCAProjection getProjection() {
+		return projection;
+	}
+}
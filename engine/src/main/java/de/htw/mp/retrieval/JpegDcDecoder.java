@@ -0,0 +1,596 @@
+package de.htw.mp.retrieval;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * Mean color of a baseline JPEG without decoding the image. The DC coefficient
+ * of a block is the mean of its 64 samples, so only the DC coefficients are
+ * entropy decoded and the AC coefficients are skipped. There is no dequantization
+ * of the AC coefficients, no inverse DCT and no color conversion of every pixel.
+ * 
+ * The DC coefficients form a 1/8 scale image. Every pixel of it is converted
+ * to RGB and weighted by the number of image pixels it covers.
+ * 
+ * The file is streamed through a small buffer, the memory does not depend on
+ * the size of the image. Truncated or corrupt files are reported as unsupported.
+ * 
+ * Supports sequential Huffman coded JPEGs with three components in a single
+ * scan. Progressive, arithmetic coded, multi scan, CMYK and grayscale files are
+ * not supported and have to be decoded as usual. Decoded grayscale images are
+ * converted from a linear gray color space, their DC coefficients would not
+ * match the colors of the decoded image.
+ * 
+ * @author Nico Hezel
+ */
+public class JpegDcDecoder {
+
+	/**
+	 * Marker codes
+	 */
+	private static final int SOF0 = 0xC0, SOF1 = 0xC1, DHT = 0xC4, SOI = 0xD8, EOI = 0xD9, SOS = 0xDA, DQT = 0xDB, DRI = 0xDD, APP14 = 0xEE;
+
+	/**
+	 * Number of bits of the Huffman lookup tables
+	 */
+	private static final int LOOKAHEAD = 9;
+
+	/**
+	 * Size of the read buffer
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Canonical Huffman table with a lookup table for short codes
+	 */
+	private static class HuffmanTable {
+
+		/**
+		 * (code length << 8) | symbol of all codes with at most LOOKAHEAD bits, 0 otherwise
+		 */
+		final int[] lookup = new int[1 << LOOKAHEAD];
+		final int[] maxCode = new int[17];
+		final int[] valueOffset = new int[17];
+		final byte[] symbols;
+
+		HuffmanTable(int[] counts, byte[] symbols) throws UnsupportedJpegException {
+			this.symbols = symbols;
+
+			int code = 0;
+			int k = 0;
+			for (int length = 1; length <= 16; length++) {
+				valueOffset[length] = k - code;
+				for (int i = 0; i < counts[length]; i++, k++, code++) {
+					if(code >= (1 << length))
+						throw new UnsupportedJpegException();
+					if(length <= LOOKAHEAD) {
+						int shift = LOOKAHEAD - length;
+						for (int fill = 0; fill < (1 << shift); fill++)
+							lookup[(code << shift) | fill] = (length << 8) | (symbols[k] & 0xff);
+					}
+				}
+				maxCode[length] = (counts[length] == 0) ? -1 : code - 1;
+				code <<= 1;
+			}
+		}
+	}
+
+	/**
+	 * Component of a frame
+	 */
+	private static class Component {
+		int id, h, v, quantTable;
+		HuffmanTable dc, ac;
+		int predictor;
+	}
+
+	/**
+	 * Thrown for broken or unsupported data, the file is decoded as usual instead
+	 */
+	private static class UnsupportedJpegException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int bufferPos;
+	private int bufferLimit;
+
+	// entropy coded data, left aligned bits
+	private long bitBuffer;
+	private int bitCount;
+
+	// marker or end of file which ended the entropy coded data, -1 for the end of file
+	private boolean markerReached;
+	private int marker;
+
+	// zero bits added to the bit buffer after the end of the entropy coded data
+	private int paddingBits;
+
+	// color of the current 8x8 pixel cell
+	private final int[] cellColor = new int[3];
+
+	private JpegDcDecoder(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Adds the colors of all pixels of a baseline JPEG to the red, green and blue
+	 * sums and the number of pixels to the fourth element of the sums.
+	 * Files which are no JPEGs or not supported are not read completely.
+	 * 
+	 * @param imageFile
+	 * @param sums
+	 * @return false if the file is not supported, truncated or corrupt, the sums are not changed then
+	 * @throws IOException if the file can not be read
+	 */
+	public static boolean sumColors(File imageFile, long[] sums) throws IOException {
+		try (InputStream in = Files.newInputStream(imageFile.toPath())) {
+			long[] imageSums = new JpegDcDecoder(in).decode();
+			if(imageSums == null)
+				return false;
+			for (int i = 0; i < sums.length; i++)
+				sums[i] += imageSums[i];
+			return true;
+		} catch (UnsupportedJpegException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses the markers and decodes the DC coefficients of the first scan
+	 * 
+	 * @return red, green, blue sums and the number of pixels or NULL if the format is not supported
+	 * @throws UnsupportedJpegException
+	 * @throws IOException
+	 */
+	private long[] decode() throws UnsupportedJpegException, IOException {
+		if(readByte() != 0xFF || readByte() != SOI)
+			return null;
+
+		int[] quantDC = new int[4];
+		boolean[] quantDefined = new boolean[4];
+		HuffmanTable[] dcTables = new HuffmanTable[4];
+		HuffmanTable[] acTables = new HuffmanTable[4];
+		Component[] components = null;
+		int width = 0, height = 0;
+		int restartInterval = 0;
+		int adobeTransform = -1;
+
+		while(true) {
+
+			// next marker, fill bytes are skipped
+			if(readByte() != 0xFF)
+				throw new UnsupportedJpegException();
+			int segmentMarker = readByte();
+			while(segmentMarker == 0xFF)
+				segmentMarker = readByte();
+			if(segmentMarker < 0 || segmentMarker == EOI || (segmentMarker >= 0xD0 && segmentMarker <= 0xD7))
+				return null;
+
+			// progressive, lossless and arithmetic coded frames
+			if(segmentMarker >= 0xC2 && segmentMarker <= 0xCF && segmentMarker != DHT && segmentMarker != 0xC8 && segmentMarker != 0xCC)
+				return null;
+
+			byte[] segment = readSegment();
+			switch (segmentMarker) {
+			case SOF0:
+			case SOF1:
+				check(segment.length >= 6);
+				if(u8(segment, 0) != 8)
+					return null;
+				height = u16(segment, 1);
+				width = u16(segment, 3);
+				int componentCount = u8(segment, 5);
+				if(height == 0 || width == 0 || componentCount != 3)
+					return null;
+				check(segment.length >= 6 + componentCount * 3);
+				components = new Component[componentCount];
+				for (int c = 0; c < componentCount; c++) {
+					int offset = 6 + c * 3;
+					Component component = new Component();
+					component.id = u8(segment, offset);
+					component.h = u8(segment, offset + 1) >> 4;
+					component.v = u8(segment, offset + 1) & 0x0f;
+					component.quantTable = u8(segment, offset + 2) & 0x03;
+					if(component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4)
+						return null;
+					components[c] = component;
+				}
+				break;
+
+			case DQT:
+				for (int pos = 0; pos < segment.length; ) {
+					int precision = u8(segment, pos) >> 4;
+					int table = u8(segment, pos) & 0x03;
+					int tableLength = 1 + 64 * (precision + 1);
+					check(precision <= 1 && pos + tableLength <= segment.length);
+					quantDC[table] = (precision == 0) ? u8(segment, pos + 1) : u16(segment, pos + 1);
+					quantDefined[table] = true;
+					pos += tableLength;
+				}
+				break;
+
+			case DHT:
+				for (int pos = 0; pos < segment.length; ) {
+					check(pos + 17 <= segment.length);
+					int tableClass = u8(segment, pos) >> 4;
+					int table = u8(segment, pos) & 0x03;
+					int[] counts = new int[17];
+					int total = 0;
+					for (int i = 1; i <= 16; i++)
+						total += counts[i] = u8(segment, pos + i);
+					check(total <= 256 && pos + 17 + total <= segment.length);
+					byte[] symbols = new byte[total];
+					System.arraycopy(segment, pos + 17, symbols, 0, total);
+					HuffmanTable huffman = new HuffmanTable(counts, symbols);
+					if(tableClass == 0)
+						dcTables[table] = huffman;
+					else
+						acTables[table] = huffman;
+					pos += 17 + total;
+				}
+				break;
+
+			case DRI:
+				check(segment.length >= 2);
+				restartInterval = u16(segment, 0);
+				break;
+
+			case APP14:
+				// Adobe segment, transform 0 means the components are not YCbCr
+				if(segment.length >= 12 && segment[0] == 'A' && segment[1] == 'd' && segment[2] == 'o' && segment[3] == 'b' && segment[4] == 'e')
+					adobeTransform = u8(segment, 11);
+				break;
+
+			case SOS:
+				// only a single scan with all components is supported
+				check(segment.length >= 1);
+				if(components == null || u8(segment, 0) != components.length)
+					return null;
+				check(segment.length >= 1 + components.length * 2 + 3);
+				for (int i = 0; i < components.length; i++) {
+					int id = u8(segment, 1 + i * 2);
+					int tables = u8(segment, 2 + i * 2);
+					Component component = components[i];
+					if(component.id != id || quantDefined[component.quantTable] == false)
+						return null;
+					component.dc = dcTables[(tables >> 4) & 0x03];
+					component.ac = acTables[tables & 0x03];
+					if(component.dc == null || component.ac == null)
+						return null;
+				}
+				boolean rgb = adobeTransform == 0 || (components[0].id == 'R' && components[1].id == 'G' && components[2].id == 'B');
+				return decodeScan(components, quantDC, width, height, restartInterval, rgb);
+			}
+		}
+	}
+
+	/**
+	 * Decodes the DC coefficients of all blocks and sums up the colors of the 1/8 scale image
+	 * 
+	 * @param components
+	 * @param quantDC DC value of each quantization table
+	 * @param width of the image
+	 * @param height of the image
+	 * @param restartInterval number of MCUs between two restart markers, 0 for none
+	 * @param rgb the components are RGB instead of YCbCr
+	 * @return red, green, blue sums and the number of pixels
+	 * @throws UnsupportedJpegException
+	 * @throws IOException
+	 */
+	private long[] decodeScan(Component[] components, int[] quantDC, int width, int height, int restartInterval, boolean rgb) throws UnsupportedJpegException, IOException {
+
+		int maxH = 1, maxV = 1;
+		for (Component component : components) {
+			maxH = Math.max(maxH, component.h);
+			maxV = Math.max(maxV, component.v);
+		}
+
+		int mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+		int mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+
+		// mean sample value of every block in the current MCU
+		int[][] blockMeans = new int[components.length][];
+		for (int c = 0; c < components.length; c++)
+			blockMeans[c] = new int[components[c].h * components[c].v];
+
+		long red = 0, green = 0, blue = 0, pixelCount = 0;
+		int mcusToRestart = restartInterval;
+		for (int mcuY = 0; mcuY < mcusY; mcuY++) {
+			for (int mcuX = 0; mcuX < mcusX; mcuX++) {
+
+				if(restartInterval > 0) {
+					if(mcusToRestart == 0) {
+						restart(components);
+						mcusToRestart = restartInterval;
+					}
+					mcusToRestart--;
+				}
+
+				// DC coefficients of all blocks in the MCU
+				for (int c = 0; c < components.length; c++) {
+					Component component = components[c];
+					int quant = quantDC[component.quantTable];
+					for (int b = 0; b < blockMeans[c].length; b++) {
+						component.predictor += decodeDC(component.dc);
+						skipAC(component.ac);
+
+						// DC = 8 * mean of the level shifted samples
+						blockMeans[c][b] = clamp(Math.round(component.predictor * quant / 8f) + 128);
+					}
+				}
+
+				// every 8x8 pixel cell of the MCU, sub sampled components are repeated
+				for (int cellY = 0; cellY < maxV; cellY++) {
+					int pixelsY = Math.min(8, height - (mcuY * maxV + cellY) * 8);
+					for (int cellX = 0; cellX < maxH; cellX++) {
+						int pixelsX = Math.min(8, width - (mcuX * maxH + cellX) * 8);
+						if(pixelsX <= 0 || pixelsY <= 0)
+							continue;
+
+						int weight = pixelsX * pixelsY;
+						int[] rgbValues = toRGB(components, blockMeans, cellX, cellY, maxH, maxV, rgb);
+						red += (long) rgbValues[0] * weight;
+						green += (long) rgbValues[1] * weight;
+						blue += (long) rgbValues[2] * weight;
+						pixelCount += weight;
+					}
+				}
+			}
+		}
+		checkPadding();
+
+		return new long[] { red, green, blue, pixelCount };
+	}
+
+	/**
+	 * Color of a 8x8 pixel cell of the current MCU
+	 * 
+	 * @param components
+	 * @param blockMeans
+	 * @param cellX
+	 * @param cellY
+	 * @param maxH
+	 * @param maxV
+	 * @param rgb
+	 * @return red, green and blue
+	 */
+	private int[] toRGB(Component[] components, int[][] blockMeans, int cellX, int cellY, int maxH, int maxV, boolean rgb) {
+		int[] values = cellColor;
+		for (int c = 0; c < 3; c++) {
+			Component component = components[c];
+			values[c] = blockMeans[c][(cellY * component.v / maxV) * component.h + cellX * component.h / maxH];
+		}
+		if(rgb)
+			return values;
+
+		// YCbCr to RGB as defined by JFIF
+		float y = values[0];
+		float cb = values[1] - 128;
+		float cr = values[2] - 128;
+		values[0] = clamp(Math.round(y + 1.402f * cr));
+		values[1] = clamp(Math.round(y - 0.344136f * cb - 0.714136f * cr));
+		values[2] = clamp(Math.round(y + 1.772f * cb));
+		return values;
+	}
+
+	private static int clamp(int value) {
+		return Math.min(255, Math.max(0, value));
+	}
+
+	/**
+	 * Skip the restart marker and reset the DC predictors
+	 * 
+	 * @param components
+	 * @throws UnsupportedJpegException if the next marker is no restart marker
+	 * @throws IOException
+	 */
+	private void restart(Component[] components) throws UnsupportedJpegException, IOException {
+		checkPadding();
+
+		// skip the remaining entropy coded bytes
+		while(markerReached == false)
+			nextEntropyByte();
+		if(marker < 0xD0 || marker > 0xD7)
+			throw new UnsupportedJpegException();
+
+		bitBuffer = 0;
+		bitCount = 0;
+		paddingBits = 0;
+		markerReached = false;
+		for (Component component : components)
+			component.predictor = 0;
+	}
+
+	/**
+	 * The padding after the end of the entropy coded data must not be decoded,
+	 * otherwise the data was truncated or corrupt.
+	 * 
+	 * @throws UnsupportedJpegException
+	 */
+	private void checkPadding() throws UnsupportedJpegException {
+		if(paddingBits > bitCount)
+			throw new UnsupportedJpegException();
+	}
+
+	/**
+	 * Decodes the difference to the DC coefficient of the previous block
+	 * 
+	 * @param table
+	 * @return
+	 * @throws UnsupportedJpegException
+	 * @throws IOException
+	 */
+	private int decodeDC(HuffmanTable table) throws UnsupportedJpegException, IOException {
+		int size = decodeSymbol(table);
+		if(size == 0)
+			return 0;
+		check(size <= 11);
+
+		int value = readBits(size);
+		return (value < (1 << (size - 1))) ? value - (1 << size) + 1 : value;
+	}
+
+	/**
+	 * Skips all AC coefficients of a block
+	 * 
+	 * @param table
+	 * @throws UnsupportedJpegException
+	 * @throws IOException
+	 */
+	private void skipAC(HuffmanTable table) throws UnsupportedJpegException, IOException {
+		for (int k = 1; k < 64; k++) {
+			int symbol = decodeSymbol(table);
+			int run = symbol >> 4;
+			int size = symbol & 0x0f;
+			if(size == 0) {
+				if(run != 15)
+					return;	// end of block
+				k += 15;
+			} else {
+				k += run;
+				readBits(size);
+			}
+			check(k < 64);
+		}
+	}
+
+	/**
+	 * @param table
+	 * @return next Huffman coded symbol
+	 * @throws UnsupportedJpegException
+	 * @throws IOException
+	 */
+	private int decodeSymbol(HuffmanTable table) throws UnsupportedJpegException, IOException {
+		if(bitCount < 16)
+			fillBits();
+
+		int entry = table.lookup[(int) (bitBuffer >>> (64 - LOOKAHEAD))];
+		if(entry != 0) {
+			int length = entry >> 8;
+			bitBuffer <<= length;
+			bitCount -= length;
+			return entry & 0xff;
+		}
+
+		// codes longer than the lookup table
+		for (int length = LOOKAHEAD + 1; length <= 16; length++) {
+			int code = (int) (bitBuffer >>> (64 - length));
+			if(code <= table.maxCode[length]) {
+				bitBuffer <<= length;
+				bitCount -= length;
+				return table.symbols[table.valueOffset[length] + code] & 0xff;
+			}
+		}
+		throw new UnsupportedJpegException();
+	}
+
+	/**
+	 * @param count at most 16
+	 * @return next bits of the entropy coded data
+	 * @throws IOException
+	 */
+	private int readBits(int count) throws IOException {
+		if(bitCount < count)
+			fillBits();
+		int value = (int) (bitBuffer >>> (64 - count));
+		bitBuffer <<= count;
+		bitCount -= count;
+		return value;
+	}
+
+	/**
+	 * Fills the bit buffer with the next bytes of the entropy coded data.
+	 * After a marker or the end of the file zeros are added.
+	 * 
+	 * @throws IOException
+	 */
+	private void fillBits() throws IOException {
+		while(bitCount <= 56) {
+			bitBuffer |= (long) nextEntropyByte() << (56 - bitCount);
+			bitCount += 8;
+		}
+	}
+
+	/**
+	 * Next byte of the entropy coded data, stuffed zero bytes are removed.
+	 * 
+	 * @return 0 after a marker or the end of the file
+	 * @throws IOException
+	 */
+	private int nextEntropyByte() throws IOException {
+		if(markerReached == false) {
+			int b = readByte();
+			if(b == 0xFF) {
+				int next = readByte();
+				while(next == 0xFF)
+					next = readByte();
+				if(next == 0)
+					return 0xFF;
+				marker = next;
+			} else if(b >= 0) {
+				return b;
+			} else {
+				marker = -1;
+			}
+			markerReached = true;
+		}
+		paddingBits += 8;
+		return 0;
+	}
+
+	/**
+	 * Reads a marker segment without its length field
+	 * 
+	 * @return
+	 * @throws UnsupportedJpegException
+	 * @throws IOException
+	 */
+	private byte[] readSegment() throws UnsupportedJpegException, IOException {
+		int high = readByte();
+		int low = readByte();
+		check(low >= 0 && high >= 0);
+		int length = (high << 8) | low;
+		check(length >= 2);
+
+		byte[] segment = new byte[length - 2];
+		for (int i = 0; i < segment.length; i++) {
+			int b = readByte();
+			check(b >= 0);
+			segment[i] = (byte) b;
+		}
+		return segment;
+	}
+
+	/**
+	 * @return next byte of the file or -1 at the end of the file
+	 * @throws IOException
+	 */
+	private int readByte() throws IOException {
+		if(bufferPos == bufferLimit) {
+			bufferLimit = in.read(buffer);
+			bufferPos = 0;
+			if(bufferLimit <= 0) {
+				bufferLimit = 0;
+				return -1;
+			}
+		}
+		return buffer[bufferPos++] & 0xff;
+	}
+
+	private static void check(boolean valid) throws UnsupportedJpegException {
+		if(valid == false)
+			throw new UnsupportedJpegException();
+	}
+
+	private static int u8(byte[] segment, int offset) {
+		return segment[offset] & 0xff;
+	}
+
+	private static int u16(byte[] segment, int offset) {
+		return ((segment[offset] & 0xff) << 8) | (segment[offset + 1] & 0xff);
+	}
+}
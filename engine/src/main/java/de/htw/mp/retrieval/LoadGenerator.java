@@ -0,0 +1,451 @@
+package de.htw.mp.retrieval;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.htw.mp.model.FeatureContainer;
+import de.htw.mp.model.FeatureType;
+
+/**
+ * Load test of the whole query path. Builds the index of a dataset, scales it
+ * up synthetically to a target size and fires a mix of retrieve and classify
+ * queries from many client threads. The throughput, the latency percentiles
+ * and the allocation rate are written to a JSON file.
+ * 
+ * In the closed loop mode every client sends its next query as soon as the last
+ * one is answered. In the open loop mode queries are sent at a fixed rate, the
+ * latency is measured from the time a query was scheduled, so queueing delays
+ * of an overloaded engine are part of the result.
+ * 
+ * Arguments are given as key=value pairs:
+ * dataset, size, mode (closed/open), threads, rate (queries per second),
+ * warmup and duration (seconds), mix and output. A mix entry has the format
+ * FeatureType/Database/k:weight with the databases All, Categories or Cascaded.
+ * 
+ * @author Nico Hezel
+ */
+public class LoadGenerator {
+
+	/**
+	 * Default configuration
+	 */
+	private static final String[][] DEFAULTS = {
+		{ "dataset", "dataset/Webimages" },
+		{ "size", "10000" },
+		{ "mode", "closed" },
+		{ "threads", String.valueOf(Runtime.getRuntime().availableProcessors()) },
+		{ "rate", "100" },
+		{ "warmup", "5" },
+		{ "duration", "20" },
+		{ "mix", "MeanColor/All/5:4,PerceptualHash/All/5:2,MeanImagePCA/Cascaded/10:1,MeanImagePyramid/Categories/5:1" },
+		{ "output", "load-report.json" },
+	};
+
+	/**
+	 * Type of query and its share of the load
+	 */
+	private static class QueryType {
+		final FeatureType featureType;
+		final String database;
+		final int k;
+		final double weight;
+
+		/**
+		 * Latencies in nanoseconds measured after the warmup
+		 */
+		final ConcurrentLinkedQueue<long[]> latencies = new ConcurrentLinkedQueue<>();
+
+		QueryType(String spec) {
+			String[] weighted = spec.trim().split(":");
+			String[] parts = weighted[0].split("/");
+			this.featureType = FeatureType.get(parts[0]);
+			this.database = parts[1];
+			this.k = Integer.parseInt(parts[2]);
+			this.weight = (weighted.length > 1) ? Double.parseDouble(weighted[1]) : 1;
+		}
+
+		@Override
+		public String toString() {
+			return featureType + "/" + database + "/" + k;
+		}
+	}
+
+	/**
+	 * Latencies of one client thread, stored without boxing. The buffer
+	 * only grows, by doubling, if the initial capacity is exceeded.
+	 */
+	private static class LatencyBuffer {
+		private long[] values = new long[8192];
+		private int size;
+
+		void add(long latency) {
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = latency;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	private final RetrievalEngine engine = new RetrievalEngine();
+	private final Map<String, String> config = new LinkedHashMap<>();
+	private final List<QueryType> mix = new ArrayList<>();
+
+	/**
+	 * Synthetic dataset
+	 */
+	private FeatureContainer[] images;
+	private FeatureContainer[] categories;
+	private Map<String, FeatureContainer[]> categoryImages;
+
+	/**
+	 * Failed queries and bytes allocated by all threads of the process during the measurement
+	 */
+	private final AtomicLong errors = new AtomicLong();
+	private volatile long allocatedBytes;
+
+	/**
+	 * @param args key=value pairs, see {@link LoadGenerator}
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		LoadGenerator generator = new LoadGenerator(args);
+		generator.buildIndex();
+		generator.run();
+	}
+
+	public LoadGenerator(String[] args) {
+		for (String[] entry : DEFAULTS)
+			config.put(entry[0], entry[1]);
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if(split < 0 || config.containsKey(arg.substring(0, split)) == false)
+				throw new IllegalArgumentException("Unknown argument " + arg + ", expected one of " + config.keySet());
+			config.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		for (String spec : config.get("mix").split(","))
+			mix.add(new QueryType(spec));
+	}
+
+	/**
+	 * Builds the index of the dataset and copies its images until the target size is reached.
+	 * The copies get slightly changed mean colors, hashes and embeddings, the mean images
+	 * and pyramids are shared with the originals.
+	 */
+	public void buildIndex() {
+		long start = System.currentTimeMillis();
+		engine.buildIndex(Paths.get(config.get("dataset")));
+		DatasetIndex index = engine.getIndex();
+		FeatureContainer[] originals = index.getImageFeatures();
+		int size = Math.max(originals.length, Integer.parseInt(config.get("size")));
+
+		Random rnd = new Random(7);
+		images = new FeatureContainer[size];
+		Map<String, List<FeatureContainer>> byCategory = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			FeatureContainer original = originals[i % originals.length];
+			images[i] = (i < originals.length) ? original : synthesize(original, i / originals.length, rnd);
+			byCategory.computeIfAbsent(original.getCategory(), name -> new ArrayList<>()).add(images[i]);
+		}
+
+		categories = index.getCategoryFeatures();
+		categoryImages = new HashMap<>();
+		byCategory.forEach((name, list) -> categoryImages.put(name, list.toArray(new FeatureContainer[0])));
+		System.out.printf("Built index with %d images (%d original) and %d categories in %dms%n", images.length, originals.length, categories.length, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Slightly changed copy of an image feature
+	 */
+	private static FeatureContainer synthesize(FeatureContainer original, int copy, Random rnd) {
+		Color color = original.getMeanColor();
+		Color meanColor = new Color(jitter(color.getRed(), rnd), jitter(color.getGreen(), rnd), jitter(color.getBlue(), rnd));
+		long hash = original.getPerceptualHash() ^ (1L << rnd.nextInt(Long.SIZE)) ^ (1L << rnd.nextInt(Long.SIZE));
+		FeatureContainer feature = new FeatureContainer(original.getName() + "#" + copy, original.getCategory(), original.getCategoryId(),
+				meanColor, original.getMeanImagePyramid(), hash);
+
+		float[] embedding = original.getEmbedding();
+		if(embedding != null) {
+			float[] copyEmbedding = new float[embedding.length];
+			for (int i = 0; i < embedding.length; i++)
+				copyEmbedding[i] = embedding[i] + (float)rnd.nextGaussian() * 10;
+			feature.setEmbedding(copyEmbedding);
+		}
+		return feature;
+	}
+
+	private static int jitter(int value, Random rnd) {
+		return Math.max(0, Math.min(255, value + rnd.nextInt(17) - 8));
+	}
+
+	/**
+	 * Warm up, measure and write the report
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public void run() throws InterruptedException, IOException {
+		int threads = Integer.parseInt(config.get("threads"));
+		long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(config.get("warmup")));
+		long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(config.get("duration")));
+		boolean openLoop = "open".equals(config.get("mode"));
+
+		long measureStart = System.nanoTime() + warmup;
+		long measureEnd = measureStart + duration;
+		System.out.printf("Running %s loop with %d threads for %ds after %ds warmup%n", openLoop ? "open" : "closed", threads,
+				TimeUnit.NANOSECONDS.toSeconds(duration), TimeUnit.NANOSECONDS.toSeconds(warmup));
+
+		Thread sampler = sampleAllocations(measureStart, measureEnd);
+		if(openLoop)
+			runOpenLoop(threads, measureStart, measureEnd);
+		else
+			runClosedLoop(threads, measureStart, measureEnd);
+		sampler.join();
+
+		String report = report(threads, duration);
+		Files.write(Paths.get(config.get("output")), report.getBytes(StandardCharsets.UTF_8));
+		System.out.println(report);
+	}
+
+	/**
+	 * Every client thread sends its next query as soon as the last one is answered
+	 */
+	private void runClosedLoop(int threads, long measureStart, long measureEnd) throws InterruptedException {
+		List<Thread> clients = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread client = new Thread(() -> {
+				LatencyBuffer[] latencies = newLatencyBuffers();
+				while(System.nanoTime() < measureEnd) {
+					int type = pickQueryType();
+					long start = System.nanoTime();
+					execute(mix.get(type));
+					if(start >= measureStart)
+						latencies[type].add(System.nanoTime() - start);
+				}
+				publish(latencies);
+			}, "LoadClient-" + t);
+			clients.add(client);
+			client.start();
+		}
+		for (Thread client : clients)
+			client.join();
+	}
+
+	/**
+	 * Queries are scheduled at a fixed rate and executed by a pool of client threads.
+	 * The latency includes the time a query waited for a free client.
+	 */
+	private void runOpenLoop(int threads, long measureStart, long measureEnd) throws InterruptedException {
+		double rate = Double.parseDouble(config.get("rate"));
+		long interval = (long)(TimeUnit.SECONDS.toNanos(1) / rate);
+		List<LatencyBuffer[]> allLatencies = Collections.synchronizedList(new ArrayList<>());
+		ThreadLocal<LatencyBuffer[]> threadLatencies = ThreadLocal.withInitial(() -> {
+			LatencyBuffer[] latencies = newLatencyBuffers();
+			allLatencies.add(latencies);
+			return latencies;
+		});
+		AtomicInteger clientCount = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "LoadClient-" + clientCount.getAndIncrement()));
+
+		// schedule the queries, the dispatcher never waits for an answer
+		long start = System.nanoTime();
+		for (long i = 0; ; i++) {
+			long scheduled = start + i * interval;
+			if(scheduled >= measureEnd)
+				break;
+			long wait = scheduled - System.nanoTime();
+			if(wait > 0)
+				TimeUnit.NANOSECONDS.sleep(wait);
+
+			pool.execute(() -> {
+				int type = pickQueryType();
+				execute(mix.get(type));
+				if(scheduled >= measureStart)
+					threadLatencies.get()[type].add(System.nanoTime() - scheduled);
+			});
+		}
+
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.HOURS);
+		for (LatencyBuffer[] latencies : allLatencies)
+			publish(latencies);
+	}
+
+	/**
+	 * Allocations of all threads between the start and the end of the measurement,
+	 * including the worker threads of parallel searches. Threads which end during
+	 * the measurement are not counted.
+	 * 
+	 * @param measureStart
+	 * @param measureEnd
+	 * @return the running sampler thread
+	 */
+	private Thread sampleAllocations(long measureStart, long measureEnd) {
+		Thread sampler = new Thread(() -> {
+			try {
+				TimeUnit.NANOSECONDS.sleep(measureStart - System.nanoTime());
+				long start = allocatedBytes();
+				TimeUnit.NANOSECONDS.sleep(measureEnd - System.nanoTime());
+				allocatedBytes = allocatedBytes() - start;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "AllocationSampler");
+		sampler.setDaemon(true);
+		sampler.start();
+		return sampler;
+	}
+
+	/**
+	 * Run a single query and the classification of its result
+	 * 
+	 * @param queryType
+	 */
+	private void execute(QueryType queryType) {
+		try {
+			FeatureContainer query = images[ThreadLocalRandom.current().nextInt(images.length)];
+			List<FeatureContainer> result;
+			switch (queryType.database) {
+				case "Categories":
+					result = engine.retrieve(query, categories, queryType.featureType, queryType.k);
+					break;
+				case "Cascaded":
+					result = engine.retrieveCascaded(query, categories, categoryImages, queryType.featureType, 0, queryType.k);
+					break;
+				default:
+					result = engine.retrieve(query, images, queryType.featureType, queryType.k);
+					break;
+			}
+			engine.classify(query, result, queryType.featureType, queryType.k, false);
+		} catch (RuntimeException e) {
+			if(errors.getAndIncrement() == 0)
+				e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Random query type according to the weights of the mix
+	 * 
+	 * @return index of the query type
+	 */
+	private int pickQueryType() {
+		double total = 0;
+		for (QueryType queryType : mix)
+			total += queryType.weight;
+		double value = ThreadLocalRandom.current().nextDouble() * total;
+		for (int i = 0; i < mix.size() - 1; i++) {
+			value -= mix.get(i).weight;
+			if(value < 0)
+				return i;
+		}
+		return mix.size() - 1;
+	}
+
+	/**
+	 * One latency buffer per query type, allocated before the measurement
+	 */
+	private LatencyBuffer[] newLatencyBuffers() {
+		LatencyBuffer[] latencies = new LatencyBuffer[mix.size()];
+		for (int i = 0; i < latencies.length; i++)
+			latencies[i] = new LatencyBuffer();
+		return latencies;
+	}
+
+	/**
+	 * Hand the latencies of a client thread over to the query types
+	 */
+	private void publish(LatencyBuffer[] latencies) {
+		for (int i = 0; i < mix.size(); i++)
+			mix.get(i).latencies.add(latencies[i].toArray());
+	}
+
+	/**
+	 * Bytes allocated so far by all living threads or 0 if the JVM does not support the measurement
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean))
+			return 0;
+		long[] allocated = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds());
+		long sum = 0;
+		for (long bytes : allocated)
+			sum += Math.max(0, bytes);
+		return sum;
+	}
+
+	/**
+	 * JSON report with the configuration, the overall and the per query type results
+	 */
+	private String report(int threads, long duration) {
+		double seconds = duration / 1e9;
+		List<long[]> all = new ArrayList<>();
+		StringBuilder perType = new StringBuilder();
+		for (QueryType queryType : mix) {
+			long[] latencies = merge(new ArrayList<>(queryType.latencies));
+			all.add(latencies);
+			if(perType.length() > 0)
+				perType.append(",\n");
+			perType.append(String.format(Locale.ROOT, "    { \"query\": \"%s\", \"weight\": %s, \"requests\": %d, \"throughput\": %.1f, \"latencyMs\": %s }",
+					queryType, queryType.weight, latencies.length, latencies.length / seconds, percentiles(latencies)));
+		}
+		long[] latencies = merge(all);
+
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"config\": {");
+		int i = 0;
+		for (Map.Entry<String, String> entry : config.entrySet())
+			json.append(i++ == 0 ? " " : ", ").append('"').append(entry.getKey()).append("\": \"").append(entry.getValue().replace("\"", "\\\"")).append('"');
+		json.append(" },\n");
+		json.append(String.format(Locale.ROOT, "  \"indexSize\": %d,%n  \"categories\": %d,%n  \"threads\": %d,%n", images.length, categories.length, threads));
+		json.append(String.format(Locale.ROOT, "  \"requests\": %d,%n  \"errors\": %d,%n  \"throughput\": %.1f,%n", latencies.length, errors.get(), latencies.length / seconds));
+		json.append(String.format(Locale.ROOT, "  \"latencyMs\": %s,%n", percentiles(latencies)));
+		json.append(String.format(Locale.ROOT, "  \"allocationRateMBps\": %.1f,%n", allocatedBytes / seconds / (1024 * 1024)));
+		json.append("  \"queries\": [\n").append(perType).append("\n  ]\n}\n");
+		return json.toString();
+	}
+
+	private static long[] merge(List<long[]> parts) {
+		long[] merged = parts.stream().flatMapToLong(Arrays::stream).toArray();
+		Arrays.sort(merged);
+		return merged;
+	}
+
+	/**
+	 * Latency percentiles in milliseconds of sorted latencies in nanoseconds
+	 */
+	private static String percentiles(long[] sorted) {
+		if(sorted.length == 0)
+			return "{}";
+		double mean = Arrays.stream(sorted).average().getAsDouble();
+		return String.format(Locale.ROOT, "{ \"mean\": %.3f, \"p50\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f }",
+				mean / 1e6, percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6, sorted[sorted.length - 1] / 1e6);
+	}
+
+	private static long percentile(long[] sorted, double quantile) {
+		int index = (int)Math.ceil(quantile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
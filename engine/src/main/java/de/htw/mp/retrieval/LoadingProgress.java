@@ -0,0 +1,84 @@
+package de.htw.mp.retrieval;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe progress of a dataset which is loaded in the background.
+ * Counts the discovered and processed images and derives the 
+ * throughput and the remaining time from them.
+ * 
+ * @author Nico Hezel
+ */
+public class LoadingProgress {
+
+	private final long startTime = System.nanoTime();
+	private final AtomicInteger discovered = new AtomicInteger();
+	private final AtomicInteger processed = new AtomicInteger();
+	private volatile boolean scanFinished = false;
+	private volatile boolean finished = false;
+	
+	public void imageDiscovered() {
+		discovered.incrementAndGet();
+	}
+	
+	public void imageProcessed() {
+		processed.incrementAndGet();
+	}
+	
+	/**
+	 * All images have been discovered
+	 */
+	public void scanFinished() {
+		scanFinished = true;
+	}
+	
+	/**
+	 * All features have been calculated
+	 */
+	public void finished() {
+		finished = true;
+	}
+	
+	public int getDiscovered() {
+		return discovered.get();
+	}
+	
+	public int getProcessed() {
+		return processed.get();
+	}
+	
+	public boolean isScanFinished() {
+		return scanFinished;
+	}
+	
+	public boolean isFinished() {
+		return finished;
+	}
+	
+	/**
+	 * @return processed images per second
+	 */
+	public double getThroughput() {
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return (seconds <= 0) ? 0 : processed.get() / seconds;
+	}
+	
+	/**
+	 * Estimated remaining seconds or -1 if unknown
+	 * 
+	 * @return
+	 */
+	public double getRemainingSeconds() {
+		double throughput = getThroughput();
+		if(scanFinished == false || throughput <= 0)
+			return -1;
+		return (discovered.get() - processed.get()) / throughput;
+	}
+	
+	@Override
+	public String toString() {
+		double remaining = getRemainingSeconds();
+		String eta = finished ? "done" : (remaining < 0) ? "scanning" : String.format("ETA %.0fs", remaining);
+		return String.format("%d/%d images, %.0f img/s, %s", processed.get(), discovered.get(), getThroughput(), eta);
+	}
+}
@@ -0,0 +1,315 @@
+package de.htw.mp.retrieval;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Projects mean image vectors onto their principal components. The projection
+ * is fitted with a randomized SVD on a sample of the dataset: the data matrix
+ * is multiplied with a random matrix, the range of the result is refined with
+ * a few power iterations and the small remaining problem is solved exactly.
+ * 
+ * @author Nico Hezel
+ */
+public class PCAProjection {
+
+	/**
+	 * Additional random directions used during the fit to capture the subspace more accurately
+	 */
+	private static final int OVERSAMPLING = 10;
+	private static final int POWER_ITERATIONS = 2;
+
+	/**
+	 * Average of all fitted vectors
+	 */
+	private final float[] mean;
+
+	/**
+	 * Principal components, ordered by their variance
+	 */
+	private final float[][] components;
+
+	/**
+	 * Fraction of the sample variance kept by the components
+	 */
+	private final double explainedVariance;
+
+	private PCAProjection(float[] mean, float[][] components, double explainedVariance) {
+		this.mean = mean;
+		this.components = components;
+		this.explainedVariance = explainedVariance;
+	}
+
+	/**
+	 * Fit the principal components of the sample vectors
+	 * 
+	 * @param samples vectors of equal length
+	 * @param dimensions number of components
+	 * @return projection or NULL if there are not enough samples
+	 */
+	public static PCAProjection fit(List<float[]> samples, int dimensions) {
+		int n = samples.size();
+		if(n < 2 || dimensions <= 0)
+			return null;
+		int d = samples.get(0).length;
+
+		// center the samples
+		float[] mean = new float[d];
+		double[] sum = new double[d];
+		for (float[] sample : samples)
+			for (int i = 0; i < d; i++)
+				sum[i] += sample[i];
+		for (int i = 0; i < d; i++)
+			mean[i] = (float)(sum[i] / n);
+
+		float[][] x = new float[n][];
+		double totalVariance = 0;
+		for (int s = 0; s < n; s++) {
+			float[] sample = samples.get(s);
+			float[] centered = new float[d];
+			for (int i = 0; i < d; i++) {
+				centered[i] = sample[i] - mean[i];
+				totalVariance += centered[i] * centered[i];
+			}
+			x[s] = centered;
+		}
+
+		// random directions
+		int l = Math.min(dimensions + OVERSAMPLING, Math.min(n, d));
+		Random rnd = new Random(42);
+		double[][] omega = new double[l][d];
+		for (double[] row : omega)
+			for (int i = 0; i < d; i++)
+				row[i] = rnd.nextGaussian();
+
+		// orthonormal basis of the range of X * omega, refined by power iterations
+		double[][] q = orthonormalize(multiply(x, omega));
+		for (int it = 0; it < POWER_ITERATIONS; it++) {
+			double[][] z = orthonormalize(multiplyTransposed(x, q));
+			q = orthonormalize(multiply(x, z));
+		}
+
+		// eigen decomposition of the small matrix B * B^T with B = Q^T * X
+		double[][] b = multiplyTransposed(x, q);
+		double[][] c = new double[l][l];
+		for (int i = 0; i < l; i++)
+			for (int j = i; j < l; j++)
+				c[i][j] = c[j][i] = dot(b[i], b[j]);
+		double[][] eigenvectors = new double[l][l];
+		double[] eigenvalues = jacobi(c, eigenvectors);
+		Integer[] order = IntStream.range(0, l).boxed().toArray(Integer[]::new);
+		Arrays.sort(order, (o1, o2) -> Double.compare(eigenvalues[o2], eigenvalues[o1]));
+
+		// right singular vectors v = B^T * u / sigma
+		int r = Math.min(dimensions, l);
+		float[][] components = new float[r][d];
+		double keptVariance = 0;
+		for (int t = 0; t < r; t++) {
+			int e = order[t];
+			double sigma = Math.sqrt(Math.max(eigenvalues[e], 1e-12));
+			keptVariance += Math.max(eigenvalues[e], 0);
+			for (int j = 0; j < l; j++) {
+				double f = eigenvectors[j][e] / sigma;
+				double[] bj = b[j];
+				float[] component = components[t];
+				for (int i = 0; i < d; i++)
+					component[i] += bj[i] * f;
+			}
+		}
+
+		return new PCAProjection(mean, components, (totalVariance > 0) ? keptVariance / totalVariance : 1);
+	}
+
+	/**
+	 * Mean image pixels as a vector of their color channels
+	 * 
+	 * @param pixels packed RGB values
+	 * @return
+	 */
+	public static float[] toVector(int[] pixels) {
+		float[] vector = new float[pixels.length * 3];
+		for (int i = 0, v = 0; i < pixels.length; i++) {
+			int rgb = pixels[i];
+			vector[v++] = (rgb >> 16) & 0xff;
+			vector[v++] = (rgb >> 8) & 0xff;
+			vector[v++] = rgb & 0xff;
+		}
+		return vector;
+	}
+
+	/**
+	 * Coordinates of the vector in the space of the principal components
+	 * 
+	 * @param vector
+	 * @return
+	 */
+	public float[] project(float[] vector) {
+		float[] embedding = new float[components.length];
+		for (int t = 0; t < components.length; t++) {
+			float[] component = components[t];
+			double value = 0;
+			for (int i = 0; i < vector.length; i++)
+				value += (vector[i] - mean[i]) * component[i];
+			embedding[t] = (float) value;
+		}
+		return embedding;
+	}
+
+	/**
+	 * Euclidean distance between two embeddings
+	 * 
+	 * @param a
+	 * @param b
+	 * @return distance or Double.MAX_VALUE if an embedding is missing
+	 */
+	public static double distance(float[] a, float[] b) {
+		if(a == null || b == null)
+			return Double.MAX_VALUE;
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			double diff = a[i] - b[i];
+			sum += diff * diff;
+		}
+		return Math.sqrt(sum);
+	}
+
+	public int getDimensions() {
+		return components.length;
+	}
+
+	public int getInputLength() {
+		return mean.length;
+	}
+
+	/**
+	 * Fraction of the sample variance kept by the components
+	 * 
+	 * @return
+	 */
+	public double getExplainedVariance() {
+		return explainedVariance;
+	}
+
+	/**
+	 * out[j][s] = x[s] * w[j]
+	 */
+	private static double[][] multiply(float[][] x, double[][] w) {
+		double[][] out = new double[w.length][x.length];
+		IntStream.range(0, x.length).parallel().forEach(s -> {
+			float[] row = x[s];
+			for (int j = 0; j < w.length; j++) {
+				double[] wj = w[j];
+				double value = 0;
+				for (int i = 0; i < row.length; i++)
+					value += row[i] * wj[i];
+				out[j][s] = value;
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * out[j] = sum of y[j][s] * x[s] over all samples s
+	 */
+	private static double[][] multiplyTransposed(float[][] x, double[][] y) {
+		int d = x[0].length;
+		double[][] out = new double[y.length][d];
+		IntStream.range(0, y.length).parallel().forEach(j -> {
+			double[] yj = y[j];
+			double[] outj = out[j];
+			for (int s = 0; s < x.length; s++) {
+				float[] row = x[s];
+				double f = yj[s];
+				for (int i = 0; i < d; i++)
+					outj[i] += row[i] * f;
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Modified Gram-Schmidt on the rows of the matrix
+	 */
+	private static double[][] orthonormalize(double[][] rows) {
+		for (int j = 0; j < rows.length; j++) {
+			double[] row = rows[j];
+			for (int p = 0; p < j; p++) {
+				double[] prev = rows[p];
+				double f = dot(row, prev);
+				for (int i = 0; i < row.length; i++)
+					row[i] -= f * prev[i];
+			}
+			double norm = Math.sqrt(dot(row, row));
+			if(norm > 1e-12)
+				for (int i = 0; i < row.length; i++)
+					row[i] /= norm;
+		}
+		return rows;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+
+	/**
+	 * Eigen decomposition of a symmetric matrix with cyclic jacobi rotations.
+	 * The matrix is destroyed, the eigenvectors are stored in the columns of v.
+	 * 
+	 * @param a symmetric matrix
+	 * @param v eigenvectors
+	 * @return eigenvalues
+	 */
+	private static double[] jacobi(double[][] a, double[][] v) {
+		int n = a.length;
+		for (int i = 0; i < n; i++)
+			v[i][i] = 1;
+
+		for (int sweep = 0; sweep < 100; sweep++) {
+			double off = 0;
+			for (int p = 0; p < n; p++)
+				for (int q = p + 1; q < n; q++)
+					off += a[p][q] * a[p][q];
+			if(off < 1e-20)
+				break;
+
+			for (int p = 0; p < n; p++) {
+				for (int q = p + 1; q < n; q++) {
+					if(Math.abs(a[p][q]) < 1e-30)
+						continue;
+					double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if(theta == 0)
+						t = 1;
+					double cos = 1 / Math.sqrt(t * t + 1);
+					double sin = t * cos;
+
+					for (int k = 0; k < n; k++) {
+						double akp = a[k][p], akq = a[k][q];
+						a[k][p] = cos * akp - sin * akq;
+						a[k][q] = sin * akp + cos * akq;
+					}
+					for (int k = 0; k < n; k++) {
+						double apk = a[p][k], aqk = a[q][k];
+						a[p][k] = cos * apk - sin * aqk;
+						a[q][k] = sin * apk + cos * aqk;
+					}
+					for (int k = 0; k < n; k++) {
+						double vkp = v[k][p], vkq = v[k][q];
+						v[k][p] = cos * vkp - sin * vkq;
+						v[k][q] = sin * vkp + cos * vkq;
+					}
+				}
+			}
+		}
+
+		double[] eigenvalues = new double[n];
+		for (int i = 0; i < n; i++)
+			eigenvalues[i] = a[i][i];
+		return eigenvalues;
+	}
+}
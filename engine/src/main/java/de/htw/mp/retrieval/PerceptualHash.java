@@ -0,0 +1,63 @@
+package de.htw.mp.retrieval;
+
+/**
+ * 64 bit difference hash (dHash) of an image. The image is converted to
+ * grayscale and area averaged to 9x8 pixels, every bit tells if a pixel is
+ * darker than its right neighbour. Similar images have hashes with a small
+ * hamming distance.
+ * 
+ * @author Nico Hezel
+ */
+public class PerceptualHash {
+
+	private static final int HASH_WIDTH = 9;
+	private static final int HASH_HEIGHT = 8;
+
+	/**
+	 * Difference hash of an image
+	 * 
+	 * @param pixels packed RGB pixels
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static long dHash(int[] pixels, int width, int height) {
+
+		// area averaged luminance, images smaller than the hash repeat their pixels
+		double[] gray = new double[HASH_WIDTH * HASH_HEIGHT];
+		for (int ty = 0; ty < HASH_HEIGHT; ty++) {
+			int y0 = ty * height / HASH_HEIGHT;
+			int y1 = Math.max(y0 + 1, (ty + 1) * height / HASH_HEIGHT);
+			for (int tx = 0; tx < HASH_WIDTH; tx++) {
+				int x0 = tx * width / HASH_WIDTH;
+				int x1 = Math.max(x0 + 1, (tx + 1) * width / HASH_WIDTH);
+				
+				long sum = 0;
+				for (int y = y0; y < y1; y++) {
+					for (int x = x0; x < x1; x++) {
+						int rgb = pixels[y * width + x];
+						sum += ((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114;
+					}
+				}
+				gray[ty * HASH_WIDTH + tx] = (double)sum / ((y1 - y0) * (x1 - x0));
+			}
+		}
+		
+		long hash = 0;
+		for (int y = 0; y < HASH_HEIGHT; y++)
+			for (int x = 0; x < HASH_WIDTH - 1; x++)
+				hash = (hash << 1) | (gray[y * HASH_WIDTH + x] < gray[y * HASH_WIDTH + x + 1] ? 1 : 0);
+		return hash;
+	}
+
+	/**
+	 * Number of different bits
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+}
@@ -0,0 +1,202 @@
+package de.htw.mp.retrieval;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded least recently used cache for search results. The size of the cache 
+ * is limited by a memory budget, the memory usage of each result is estimated
+ * by a user defined function. 
+ * 
+ * Every result is stored with the dataset version it was computed for. 
+ * Requesting a result of an older version counts as a miss and removes the entry.
+ * 
+ * @author Nico Hezel
+ * @param <V> type of the cached results
+ */
+public class QueryCache<V> {
+
+	/**
+	 * Estimated memory overhead of a cache entry including its key
+	 */
+	private static final long ENTRY_OVERHEAD = 128;
+	
+	/**
+	 * Key of a search request
+	 */
+	public static class Key {
+		
+		protected final String queryId;
+		protected final Enum<?> featureType;
+		protected final String database;
+		protected final int k;
+		
+		/**
+		 * @param queryId identifies the query image
+		 * @param featureType feature used to compare the images
+		 * @param database selected database including its search options
+		 * @param k number of nearest neighbours
+		 */
+		public Key(String queryId, Enum<?> featureType, String database, int k) {
+			this.queryId = queryId;
+			this.featureType = featureType;
+			this.database = database;
+			this.k = k;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj) return true;
+			if(!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return k == other.k && featureType == other.featureType &&
+				   Objects.equals(queryId, other.queryId) && Objects.equals(database, other.database);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(queryId, featureType, database, k);
+		}
+	}
+	
+	/**
+	 * Cached result and the dataset version it belongs to
+	 */
+	private static class Entry<V> {
+		protected final V value;
+		protected final long version;
+		protected final long size;
+		
+		public Entry(V value, long version, long size) {
+			this.value = value;
+			this.version = version;
+			this.size = size;
+		}
+	}
+	
+	private final LinkedHashMap<Key, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final ToLongFunction<V> sizeEstimator;
+	private final long memoryBudget;
+	private long memoryUsage = 0;
+	
+	// statistics
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+	
+	/**
+	 * @param memoryBudget maximal estimated memory usage of all entries in bytes
+	 * @param sizeEstimator estimates the memory usage of a result in bytes
+	 */
+	public QueryCache(long memoryBudget, ToLongFunction<V> sizeEstimator) {
+		this.memoryBudget = memoryBudget;
+		this.sizeEstimator = sizeEstimator;
+	}
+	
+	/**
+	 * Get the result of a request or NULL if it is not in the cache
+	 * or was computed for a different dataset version.
+	 * 
+	 * @param key
+	 * @param version current dataset version
+	 * @return
+	 */
+	public synchronized V get(Key key, long version) {
+		Entry<V> entry = entries.get(key);
+		if(entry != null && entry.version != version) {
+			remove(key);
+			invalidations++;
+			entry = null;
+		}
+		
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+		
+		hits++;
+		return entry.value;
+	}
+	
+	/**
+	 * Store a result. The least recently used entries are evicted until 
+	 * the memory budget is met again. Results bigger than the budget are not stored.
+	 * 
+	 * @param key
+	 * @param value
+	 * @param version dataset version the result was computed for
+	 */
+	public synchronized void put(Key key, V value, long version) {
+		long size = ENTRY_OVERHEAD + sizeEstimator.applyAsLong(value);
+		remove(key);
+		if(size > memoryBudget)
+			return;
+		
+		entries.put(key, new Entry<>(value, version, size));
+		memoryUsage += size;
+		
+		// evict the least recently used entries
+		Iterator<Map.Entry<Key, Entry<V>>> it = entries.entrySet().iterator();
+		while(memoryUsage > memoryBudget && it.hasNext()) {
+			memoryUsage -= it.next().getValue().size;
+			it.remove();
+			evictions++;
+		}
+	}
+	
+	/**
+	 * Remove all entries
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		memoryUsage = 0;
+	}
+	
+	private void remove(Key key) {
+		Entry<V> old = entries.remove(key);
+		if(old != null)
+			memoryUsage -= old.size;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	public synchronized long getMemoryUsage() {
+		return memoryUsage;
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return fraction of requests answered by the cache
+	 */
+	public synchronized double getHitRate() {
+		long requests = hits + misses;
+		return (requests == 0) ? 0 : (double) hits / requests;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return String.format("QueryCache: %d entries, %d/%d KB, %d hits, %d misses (%.0f%% hit rate), %d evictions, %d invalidations",
+				entries.size(), memoryUsage / 1024, memoryBudget / 1024, hits, misses, getHitRate() * 100, evictions, invalidations);
+	}
+}
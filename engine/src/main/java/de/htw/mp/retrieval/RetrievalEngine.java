@@ -0,0 +1,738 @@
+package de.htw.mp.retrieval;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.htw.mp.model.FeatureContainer;
+import de.htw.mp.model.FeatureType;
+import de.htw.mp.model.FeatureWrapper;
+import de.htw.mp.model.Prediction;
+
+/**
+ * Headless retrieval engine. Builds the feature index of a dataset,
+ * sorts the index based on the similarity to a query and predicts 
+ * the category of a query. Does not depend on any UI classes.
+ * 
+ * @author Nico Hezel
+ */
+public class RetrievalEngine {
+
+	/**
+	 * Calculates the features of images
+	 */
+	private final FeatureExtractor extractor = new FeatureExtractor();
+	
+	/**
+	 * Features of the loaded dataset
+	 */
+	private final DatasetIndex index = new DatasetIndex(extractor);
+	
+	/**
+	 * Finds near duplicate images in the index
+	 */
+	private final DuplicateDetector duplicateDetector = new DuplicateDetector();
+	
+	/**
+	 * Summed votes per category id, reused by every classification of a thread
+	 */
+	private static final ThreadLocal<double[]> voteWeights = ThreadLocal.withInitial(() -> new double[0]);
+	
+	/**
+	 * Databases with fewer elements are scanned on the calling thread
+	 */
+	public static final int PARALLEL_THRESHOLD = 1024;
+	
+	/**
+	 * Minimal number of elements scanned by a parallel task
+	 */
+	private static final int MIN_RANGE_SIZE = 256;
+	
+	/**
+	 * Tolerance of the coarse to fine search
+	 */
+	private double pyramidKeepFraction = 0.25;
+	private int pyramidMinCandidates = 50;
+	
+	/**
+	 * Number of the best embedding matches which get sorted again by their exact mean image distance
+	 */
+	private int embeddingRerankCandidates = 100;
+
+	/**
+	 * Command line entrance point. Builds the index of a directory and searches
+	 * for the most similar images of a query image without any UI.
+	 * 
+	 * @param args - directory, query filename, feature type (optional) and k (optional)
+	 */
+	public static void main(String[] args) {
+		if(args.length < 2) {
+			System.out.println("Usage: RetrievalEngine <directory> <query filename> [feature type] [k]");
+			return;
+		}
+		System.setProperty("java.awt.headless", "true");
+		
+		FeatureType featureType = (args.length > 2) ? FeatureType.get(args[2]) : FeatureType.MeanColor;
+		int k = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+		
+		RetrievalEngine engine = new RetrievalEngine();
+		engine.buildIndex(Paths.get(args[0]));
+		List<FeatureContainer> result = engine.query(args[1], featureType);
+		if(result == null) {
+			System.out.println("Unknown query image " + args[1]);
+			return;
+		}
+		
+		for (FeatureContainer element : result.subList(0, Math.min(k, result.size())))
+			System.out.println(element.getName());
+		System.out.println("Prediction: " + engine.classify(engine.findImageFeature(engine.index.snapshot(), args[1]), result, featureType, k, false));
+	}
+	
+	/**
+	 * Scans the directory and calculates the features of all images and 
+	 * categories. Blocks until the index is complete. The current dataset 
+	 * stays searchable and is replaced once the new one is complete.
+	 * 
+	 * @param dir
+	 */
+	public void buildIndex(Path dir) {
+		index.load(dir, new LoadingProgress());
+	}
+	
+	/**
+	 * Sort all images of the index based on their similarity to an image of the index
+	 * 
+	 * @param filename path or name of the query image
+	 * @param featureType
+	 * @return sorted list of all images or NULL if the query image is not in the index
+	 */
+	public List<FeatureContainer> query(String filename, FeatureType featureType) {
+		IndexSnapshot snapshot = index.snapshot();
+		FeatureContainer query = findImageFeature(snapshot, filename);
+		if(query == null)
+			return null;
+		return retrieve(query, snapshot.getImageFeatures(), featureType);
+	}
+	
+	/**
+	 * Features of an image by its path, or the first image with the file name
+	 * 
+	 * @param snapshot
+	 * @param filename
+	 * @return NULL if there is no such image
+	 */
+	private FeatureContainer findImageFeature(IndexSnapshot snapshot, String filename) {
+		FeatureContainer feature = snapshot.getImageFeature(new File(filename));
+		if(feature != null)
+			return feature;
+		
+		for (FeatureContainer element : snapshot.getImageFeatures())
+			if(element.getName().equals(filename))
+				return element;
+		return null;
+	}
+	
+	public FeatureExtractor getExtractor() {
+		return extractor;
+	}
+	
+	public DatasetIndex getIndex() {
+		return index;
+	}
+	
+	public DuplicateDetector getDuplicateDetector() {
+		return duplicateDetector;
+	}
+	
+	/**
+	 * Find all clusters of near duplicate images in the index.
+	 * While the dataset is loading only the images processed so far are checked.
+	 * 
+	 * @return clusters with at least two images, the largest cluster first
+	 */
+	public List<FeatureContainer[]> findDuplicates() {
+		return findDuplicates(index.snapshot());
+	}
+	
+	/**
+	 * Find all clusters of near duplicate images in a snapshot of the index.
+	 * 
+	 * @param snapshot
+	 * @return clusters with at least two images, the largest cluster first
+	 */
+	public List<FeatureContainer[]> findDuplicates(IndexSnapshot snapshot) {
+		HammingIndex hammingIndex = snapshot.getHammingIndex();
+		if(hammingIndex == null)
+			hammingIndex = new HammingIndex(snapshot.getImageFeatures());
+		return duplicateDetector.findClusters(hammingIndex);
+	}
+	
+	/**
+	 * Sort the elements in the database based on the similarity to the search query.
+	 * The similarity will be calculated between to features. Features are are stored in
+	 * the FeatureContainer and the FeatureType specifies which feature should be used.
+	 *  
+	 * @param query
+	 * @param database
+	 * @param featureType
+	 * @return sorted list of database elements
+	 */
+	public List<FeatureContainer> retrieve(FeatureContainer query, FeatureContainer[] database, FeatureType featureType) {
+		
+		if(featureType == FeatureType.MeanImagePyramid)
+			return retrieveCoarseToFine(query, database);
+		if(featureType == FeatureType.MeanImagePCA)
+			return retrieveEmbedded(query, database);
+		if(featureType == FeatureType.PerceptualHash)
+			return retrieveHashed(query, database);
+
+		return retrieve(query, database, featureType, database.length);
+	}
+	
+	/**
+	 * The k elements in the database most similar to the search query.
+	 * 
+	 * Databases with at least {@link #PARALLEL_THRESHOLD} elements are split into 
+	 * ranges which are scanned in parallel by the fork join pool. Every range keeps 
+	 * only its k best elements, the sorted results of the ranges are merged.
+	 * Smaller databases are scanned on the calling thread.
+	 * 
+	 * @param query
+	 * @param database
+	 * @param featureType
+	 * @param k
+	 * @return sorted list of the k best database elements
+	 */
+	public List<FeatureContainer> retrieve(FeatureContainer query, FeatureContainer[] database, FeatureType featureType, int k) {
+		
+		// feature types with their own search strategy
+		if(featureType == FeatureType.MeanImagePyramid || featureType == FeatureType.MeanImagePCA || featureType == FeatureType.PerceptualHash) {
+			List<FeatureContainer> result = retrieve(query, database, featureType);
+			return new ArrayList<FeatureContainer>(result.subList(0, Math.min(k, result.size())));
+		}
+		
+		if(k <= 0)
+			return new ArrayList<FeatureContainer>();
+		
+		FeatureWrapper[] ranking;
+		if(database.length < PARALLEL_THRESHOLD) {
+			ranking = new RangeScan(query, database, featureType, k, 0, database.length, database.length).compute();
+		} else {
+			int rangeSize = Math.max(MIN_RANGE_SIZE, database.length / (ForkJoinPool.getCommonPoolParallelism() * 4));
+			ranking = ForkJoinPool.commonPool().invoke(new RangeScan(query, database, featureType, k, 0, database.length, rangeSize));
+		}
+		
+		List<FeatureContainer> sortedDatabase = new ArrayList<FeatureContainer>(ranking.length);
+		for(FeatureWrapper entry : ranking) 
+			sortedDatabase.add(entry.getFeature());
+		return sortedDatabase;
+	}
+	
+	/**
+	 * Coarse to fine search on the mean image pyramids. All elements are ranked 
+	 * at the coarsest level, only the best fraction of them is ranked again at
+	 * the next finer level. The finest level is the mean image itself, its ranking
+	 * of the remaining candidates is final. Pruned elements are appended to the 
+	 * result in the order of the level they were pruned at.
+	 * 
+	 * @param query
+	 * @param database
+	 * @return sorted list of database elements
+	 */
+	public List<FeatureContainer> retrieveCoarseToFine(FeatureContainer query, FeatureContainer[] database) {
+		
+		int[][] queryPyramid = query.getMeanImagePyramid();
+		List<FeatureContainer> candidates = Arrays.asList(database);
+		List<FeatureContainer> pruned = new ArrayList<FeatureContainer>();
+		
+		int finest = queryPyramid.length - 1;
+		for (int level = 0; level <= finest; level++) {
+			
+			// rank the candidates on the current level
+			List<FeatureWrapper> ranking = new ArrayList<FeatureWrapper>(candidates.size());
+			for (FeatureContainer feature : candidates) 
+				ranking.add(new FeatureWrapper(feature, ImagePyramid.distance(queryPyramid[level], feature.getMeanImagePyramid()[level])));
+			ranking.sort(Comparator.comparingDouble(FeatureWrapper::getDistance));
+			
+			// keep the best fraction for the next level
+			int keep = ranking.size();
+			if(level < finest)
+				keep = Math.min(ranking.size(), Math.max(pyramidMinCandidates, (int)Math.ceil(ranking.size() * pyramidKeepFraction)));
+			
+			List<FeatureContainer> next = new ArrayList<FeatureContainer>(keep);
+			List<FeatureContainer> levelPruned = new ArrayList<FeatureContainer>(ranking.size() - keep);
+			for (int i = 0; i < ranking.size(); i++) 
+				(i < keep ? next : levelPruned).add(ranking.get(i).getFeature());
+			
+			// elements pruned at coarser levels are worse than those pruned later
+			pruned.addAll(0, levelPruned);
+			candidates = next;
+		}
+		
+		candidates.addAll(pruned);
+		return candidates;
+	}
+	
+	/**
+	 * Approximate search on the PCA embeddings of the mean images. The best 
+	 * matches are optionally sorted again by their exact mean image distance.
+	 * Falls back to the exact mean image search if the query has no embedding.
+	 * 
+	 * @param query
+	 * @param database
+	 * @return sorted list of database elements
+	 */
+	public List<FeatureContainer> retrieveEmbedded(FeatureContainer query, FeatureContainer[] database) {
+		if(query.getEmbedding() == null)
+			return retrieve(query, database, FeatureType.MeanImage);
+		
+		List<FeatureWrapper> ranking = new ArrayList<FeatureWrapper>(database.length);
+		for (FeatureContainer feature : database) 
+			ranking.add(new FeatureWrapper(feature, PCAProjection.distance(query.getEmbedding(), feature.getEmbedding())));
+		ranking.sort(Comparator.comparingDouble(FeatureWrapper::getDistance));
+		
+		// exact distances for the best matches
+		int rerank = Math.min(embeddingRerankCandidates, ranking.size());
+		for (int i = 0; i < rerank; i++) {
+			FeatureContainer feature = ranking.get(i).getFeature();
+			ranking.set(i, new FeatureWrapper(feature, getDistanceBy(FeatureType.MeanImage, query, feature)));
+		}
+		ranking.subList(0, rerank).sort(Comparator.comparingDouble(FeatureWrapper::getDistance));
+		
+		List<FeatureContainer> sortedDatabase = new ArrayList<FeatureContainer>(ranking.size());
+		for (FeatureWrapper entry : ranking) 
+			sortedDatabase.add(entry.getFeature());
+		return sortedDatabase;
+	}
+	
+	/**
+	 * Sorts the database by the hamming distance of the perceptual hashes.
+	 * There are only 65 possible distances, the elements are sorted into 
+	 * one bucket per distance instead of being compared with each other.
+	 * 
+	 * @param query
+	 * @param database
+	 * @return sorted list of database elements
+	 */
+	public List<FeatureContainer> retrieveHashed(FeatureContainer query, FeatureContainer[] database) {
+		long hash = query.getPerceptualHash();
+		
+		// number of elements per distance
+		byte[] distances = new byte[database.length];
+		int[] offsets = new int[Long.SIZE + 2];
+		for (int i = 0; i < database.length; i++) {
+			distances[i] = (byte) PerceptualHash.distance(hash, database[i].getPerceptualHash());
+			offsets[distances[i] + 1]++;
+		}
+		for (int d = 0; d <= Long.SIZE; d++) 
+			offsets[d + 1] += offsets[d];
+		
+		FeatureContainer[] sorted = new FeatureContainer[database.length];
+		for (int i = 0; i < database.length; i++) 
+			sorted[offsets[distances[i]]++] = database[i];
+		return new ArrayList<FeatureContainer>(Arrays.asList(sorted));
+	}
+	
+	/**
+	 * All images of the index whose perceptual hash differs in at most radius bits
+	 * from the hash of the query, sorted by their hamming distance. Uses the multi 
+	 * index of the dataset and only scans all images while the dataset is loading.
+	 * 
+	 * @param query
+	 * @param radius maximal number of different bits
+	 * @return
+	 */
+	public List<FeatureContainer> retrieveWithinRadius(FeatureContainer query, int radius) {
+		IndexSnapshot snapshot = index.snapshot();
+		HammingIndex hammingIndex = snapshot.getHammingIndex();
+		if(hammingIndex != null)
+			return hammingIndex.search(query.getPerceptualHash(), radius);
+		
+		List<FeatureContainer> result = retrieveHashed(query, snapshot.getImageFeatures());
+		int count = 0;
+		while(count < result.size() && PerceptualHash.distance(query.getPerceptualHash(), result.get(count).getPerceptualHash()) <= radius)
+			count++;
+		return new ArrayList<FeatureContainer>(result.subList(0, count));
+	}
+	
+	/**
+	 * Number of the best embedding matches which get sorted again by their 
+	 * exact mean image distance. 0 returns the pure embedding ranking.
+	 * 
+	 * @param candidates
+	 */
+	public void setEmbeddingRerank(int candidates) {
+		this.embeddingRerankCandidates = candidates;
+	}
+	
+	/**
+	 * Fraction of the candidates which get refined at the next finer pyramid level.
+	 * Higher values return results closer to the exact search.
+	 * 
+	 * @param keepFraction value between 0 and 1
+	 * @param minCandidates minimal number of candidates refined at each level
+	 */
+	public void setPyramidTolerance(double keepFraction, int minCandidates) {
+		this.pyramidKeepFraction = keepFraction;
+		this.pyramidMinCandidates = minCandidates;
+	}
+	
+	/**
+	 * Two stage search which uses the category features as a coarse index.
+	 * The categories are ranked first, afterwards only the images of the 
+	 * closest categories are sorted based on their similarity to the query.
+	 * 
+	 * If no number of probes is given (probes &lt;= 0) the number of categories 
+	 * is adapted to the query: all categories which are closer to the query than
+	 * a quarter of the way from the nearest to the median category are probed.
+	 * 
+	 * @param query
+	 * @param categoryDatabase features of all categories
+	 * @param categoryImages features of the images per category name
+	 * @param featureType
+	 * @param probes number of categories to search in, 0 for adaptive
+	 * @return sorted list of the images inside the probed categories
+	 */
+	public List<FeatureContainer> retrieveCascaded(FeatureContainer query, FeatureContainer[] categoryDatabase, 
+			Map<String, FeatureContainer[]> categoryImages, FeatureType featureType, int probes) {
+		return retrieve(query, probeCategories(query, categoryDatabase, categoryImages, featureType, probes), featureType);
+	}
+	
+	/**
+	 * Two stage search like {@link #retrieveCascaded(FeatureContainer, FeatureContainer[], Map, FeatureType, int)},
+	 * which keeps only the k best images of the probed categories.
+	 * 
+	 * @param query
+	 * @param categoryDatabase features of all categories
+	 * @param categoryImages features of the images per category name
+	 * @param featureType
+	 * @param probes number of categories to search in, 0 for adaptive
+	 * @param k
+	 * @return sorted list of the k best images inside the probed categories
+	 */
+	public List<FeatureContainer> retrieveCascaded(FeatureContainer query, FeatureContainer[] categoryDatabase, 
+			Map<String, FeatureContainer[]> categoryImages, FeatureType featureType, int probes, int k) {
+		return retrieve(query, probeCategories(query, categoryDatabase, categoryImages, featureType, probes), featureType, k);
+	}
+	
+	/**
+	 * First stage of the cascaded search, the images of the closest categories
+	 * 
+	 * @param query
+	 * @param categoryDatabase
+	 * @param categoryImages
+	 * @param featureType
+	 * @param probes
+	 * @return
+	 */
+	private FeatureContainer[] probeCategories(FeatureContainer query, FeatureContainer[] categoryDatabase, 
+			Map<String, FeatureContainer[]> categoryImages, FeatureType featureType, int probes) {
+		
+		if(categoryDatabase.length == 0)
+			return new FeatureContainer[0];
+		
+		// first stage: rank the categories
+		List<FeatureWrapper> categoryRanking = new ArrayList<FeatureWrapper>();
+		for (FeatureContainer category : categoryDatabase) 
+			categoryRanking.add(new FeatureWrapper(category, getDistanceBy(featureType, query, category)));
+		categoryRanking.sort(Comparator.comparingDouble(FeatureWrapper::getDistance));
+		
+		// number of categories to probe
+		int probeCount = probes;
+		if(probes <= 0) {
+			double nearest = categoryRanking.get(0).getDistance();
+			double median = categoryRanking.get(categoryRanking.size() / 2).getDistance();
+			double threshold = nearest + (median - nearest) / 4;
+			probeCount = 1;
+			while(probeCount < categoryRanking.size() && categoryRanking.get(probeCount).getDistance() <= threshold)
+				probeCount++;
+		}
+		probeCount = Math.min(probeCount, categoryRanking.size());
+		
+		// candidates of the second stage: all images of the closest categories
+		List<FeatureContainer> candidates = new ArrayList<FeatureContainer>();
+		for (int i = 0; i < probeCount; i++) {
+			FeatureContainer[] images = categoryImages.get(categoryRanking.get(i).getFeature().getCategory());
+			if(images != null)
+				candidates.addAll(Arrays.asList(images));
+		}
+		return candidates.toArray(new FeatureContainer[0]);
+	}
+	
+	/**
+	 * Distance between the features of two elements
+	 * 
+	 * @param featureType
+	 * @param origin
+	 * @param current
+	 * @return
+	 */
+	public double getDistanceBy(FeatureType featureType, FeatureContainer origin, FeatureContainer current) {
+		double rtn = 0d;
+		switch(featureType) {
+			case MeanColor:
+				// calculate color difference between a and b
+				rtn = getColorDistance(origin.getMeanColor(), current.getMeanColor());
+				break;
+			case MeanImage:
+			case MeanImagePyramid:
+				// calculate image difference between a and b
+				rtn = getImageDistance(origin, current);
+				break;
+			case MeanImagePCA:
+				// distance of the compressed mean images
+				rtn = PCAProjection.distance(origin.getEmbedding(), current.getEmbedding());
+				break;
+			case PerceptualHash:
+				// number of different hash bits
+				rtn = PerceptualHash.distance(origin.getPerceptualHash(), current.getPerceptualHash());
+				break;
+			}
+		return rtn;
+	}
+
+	/**
+	 * Mean euclidean color distance between the mean images. The finest pyramid level 
+	 * holds the pixels of the mean image, mean images of a different size are compared 
+	 * in their common area.
+	 * 
+	 * @param origin
+	 * @param current
+	 * @return
+	 */
+	private double getImageDistance(FeatureContainer origin, FeatureContainer current) {
+		int[][] originPyramid = origin.getMeanImagePyramid();
+		int[][] currentPyramid = current.getMeanImagePyramid();
+		int[] originPixels = originPyramid[originPyramid.length - 1];
+		int[] currentPixels = currentPyramid[currentPyramid.length - 1];
+		if(originPixels.length == currentPixels.length)
+			return ImagePyramid.distance(originPixels, currentPixels);
+		return getImageDistance(origin.getMeanImage(), current.getMeanImage());
+	}
+	
+	private double getImageDistance(BufferedImage origin, BufferedImage current) {
+		int width = Math.min(origin.getWidth(), current.getWidth());
+		int height = Math.min(origin.getHeight(), current.getHeight());
+		int[] originPixels = origin.getRGB(0, 0, width, height, null, 0, width);
+		int[] currentPixels = current.getRGB(0, 0, width, height, null, 0, width);
+		return ImagePyramid.distance(originPixels, currentPixels);
+	}
+
+	private double getColorDistance(Color origin, Color current) {
+		int diffR = current.getRed() - origin.getRed();
+		int diffG = current.getGreen() - origin.getGreen();
+		int diffB = current.getBlue() - origin.getBlue();
+		
+		return Math.sqrt(
+					diffR*diffR +
+					diffG*diffG +
+					diffB*diffB
+				);
+	}
+
+	/**
+	 * Predict the category.
+	 * Make the prediction based on the sorted list of features (images or categories). 
+	 * 
+	 * @param sortedList
+	 * @param k
+	 * @return predicted category
+	 */
+	public String classify(List<FeatureContainer> sortedList, int k) {
+		Prediction prediction = classify(null, sortedList, null, k, false);
+		return (prediction == null) ? null : prediction.getCategory();
+	}
+	
+	/**
+	 * Predict the category with a majority vote of the k nearest neighbours.
+	 * Optional the votes are weighted by the inverse distance of the neighbours to the query.
+	 * Without a query or feature type, or if the distances give no usable weights, e.g. 
+	 * because embeddings are missing, every neighbour has one vote instead.
+	 * If two categories get the same votes, the category with the nearer neighbour wins.
+	 * 
+	 * The votes are summed up per category id in an array which is reused by each thread.
+	 * 
+	 * @param query
+	 * @param sortedList
+	 * @param featureType feature used to calculate the distances
+	 * @param k
+	 * @param distanceWeighted
+	 * @return predicted category and its confidence or NULL if the list is empty
+	 */
+	public Prediction classify(FeatureContainer query, List<FeatureContainer> sortedList, FeatureType featureType, int k, boolean distanceWeighted) {
+		int count = Math.min(k, sortedList.size());
+		if(count <= 0)
+			return null;
+		
+		// make sure the vote weights can hold all category ids
+		int maxId = 0;
+		for (int i = 0; i < count; i++) 
+			maxId = Math.max(maxId, sortedList.get(i).getCategoryId());
+		if(voteWeights.get().length <= maxId)
+			voteWeights.set(new double[maxId + 1]);
+		double[] weights = voteWeights.get();
+		
+		// sum up the weighted votes
+		double totalWeight = 0;
+		if(distanceWeighted && query != null && featureType != null) {
+			for (int i = 0; i < count; i++) {
+				FeatureContainer neighbour = sortedList.get(i);
+				double weight = 1 / (getDistanceBy(featureType, query, neighbour) + 1e-6);
+				weights[neighbour.getCategoryId()] += weight;
+				totalWeight += weight;
+			}
+			
+			// distances of missing features vanish or overflow the weights
+			if(!(totalWeight >= Double.MIN_NORMAL) || Double.isInfinite(totalWeight)) {
+				for (int i = 0; i < count; i++) 
+					weights[sortedList.get(i).getCategoryId()] = 0;
+				totalWeight = 0;
+			}
+		}
+		
+		// every neighbour has one vote without weighting
+		if(totalWeight == 0) {
+			for (int i = 0; i < count; i++) 
+				weights[sortedList.get(i).getCategoryId()] += 1;
+			totalWeight = count;
+		}
+		
+		// the categories are visited in the order of their nearest neighbour, a later one needs more votes to win
+		FeatureContainer winner = null;
+		for (int i = 0; i < count; i++) {
+			FeatureContainer neighbour = sortedList.get(i);
+			if(winner == null || weights[neighbour.getCategoryId()] > weights[winner.getCategoryId()])
+				winner = neighbour;
+		}
+		Prediction prediction = new Prediction(winner.getCategory(), weights[winner.getCategoryId()] / totalWeight);
+		
+		// reset only the used counters
+		for (int i = 0; i < count; i++) 
+			weights[sortedList.get(i).getCategoryId()] = 0;
+		
+		return prediction;
+	}
+	
+	/**
+	 * Element of a range scan with its position in the database
+	 */
+	private static class RankedFeature extends FeatureWrapper {
+		
+		/**
+		 * Sorts by distance, equal distances in the order of the database
+		 */
+		private static final Comparator<RankedFeature> BY_DISTANCE = Comparator.comparingDouble(RankedFeature::getDistance).thenComparingInt(RankedFeature::getIndex);
+		
+		private final int index;
+		
+		public RankedFeature(FeatureContainer feature, double distance, int index) {
+			super(feature, distance);
+			this.index = index;
+		}
+		
+		public int getIndex() {
+			return index;
+		}
+	}
+	
+	/**
+	 * Scans a range of the database and returns its k best elements sorted by their 
+	 * distance. Ranges larger than the range size are split in half, the halves 
+	 * are scanned in parallel and their results are merged. Elements with equal
+	 * distances are ranked by their database index, the result does not depend
+	 * on the range size.
+	 */
+	private class RangeScan extends RecursiveTask<FeatureWrapper[]> {
+
+		private static final long serialVersionUID = -2417896530874152369L;
+		
+		private final FeatureContainer query;
+		private final FeatureContainer[] database;
+		private final FeatureType featureType;
+		private final int k;
+		private final int from;
+		private final int to;
+		private final int rangeSize;
+		
+		public RangeScan(FeatureContainer query, FeatureContainer[] database, FeatureType featureType, int k, int from, int to, int rangeSize) {
+			this.query = query;
+			this.database = database;
+			this.featureType = featureType;
+			this.k = k;
+			this.from = from;
+			this.to = to;
+			this.rangeSize = rangeSize;
+		}
+
+		@Override
+		protected FeatureWrapper[] compute() {
+			if(to - from <= rangeSize)
+				return scan();
+			
+			int middle = (from + to) >>> 1;
+			RangeScan left = new RangeScan(query, database, featureType, k, from, middle, rangeSize);
+			RangeScan right = new RangeScan(query, database, featureType, k, middle, to, rangeSize);
+			left.fork();
+			FeatureWrapper[] rightResult = right.compute();
+			return merge(left.join(), rightResult);
+		}
+		
+		/**
+		 * Distances of all elements in the range, only the k best are kept
+		 * 
+		 * @return
+		 */
+		private FeatureWrapper[] scan() {
+			
+			// sort the whole range
+			if(k >= to - from) {
+				RankedFeature[] ranking = new RankedFeature[to - from];
+				for (int i = from; i < to; i++) 
+					ranking[i - from] = new RankedFeature(database[i], getDistanceBy(featureType, query, database[i]), i);
+				Arrays.sort(ranking, RankedFeature.BY_DISTANCE);
+				return ranking;
+			}
+			
+			// bounded max heap with the k best elements, a later element with the same distance as the worst is not better
+			PriorityQueue<RankedFeature> best = new PriorityQueue<RankedFeature>(k + 1, RankedFeature.BY_DISTANCE.reversed());
+			for (int i = from; i < to; i++) {
+				double distance = getDistanceBy(featureType, query, database[i]);
+				if(best.size() < k || distance < best.peek().getDistance()) {
+					best.add(new RankedFeature(database[i], distance, i));
+					if(best.size() > k)
+						best.poll();
+				}
+			}
+			RankedFeature[] ranking = best.toArray(new RankedFeature[0]);
+			Arrays.sort(ranking, RankedFeature.BY_DISTANCE);
+			return ranking;
+		}
+		
+		/**
+		 * Merge two sorted rankings and keep the k best elements.
+		 * On equal distances the element of the first ranking comes first, 
+		 * it is the range with the lower database indices.
+		 * 
+		 * @param a
+		 * @param b
+		 * @return
+		 */
+		private FeatureWrapper[] merge(FeatureWrapper[] a, FeatureWrapper[] b) {
+			FeatureWrapper[] result = new FeatureWrapper[Math.min(k, a.length + b.length)];
+			int i = 0, j = 0;
+			for (int r = 0; r < result.length; r++) 
+				result[r] = (j >= b.length || (i < a.length && a[i].getDistance() <= b[j].getDistance())) ? a[i++] : b[j++];
+			return result;
+		}
+	}
+}
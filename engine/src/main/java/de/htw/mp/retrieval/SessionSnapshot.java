@@ -0,0 +1,167 @@
+package de.htw.mp.retrieval;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores the last opened dataset directory together with its feature index, 
+ * so the dataset can be searched after a restart without reprocessing it.
+ * 
+ * @author Nico Hezel
+ */
+public class SessionSnapshot {
+
+	/**
+	 * Identifies the file format
+	 */
+	private static final int MAGIC = 0x4D505635;
+	
+	/**
+	 * Version of the file format, snapshots of other versions are rejected
+	 */
+	private static final int VERSION = 2;
+	
+	/**
+	 * Location of the snapshot file
+	 */
+	private final Path file;
+	
+	/**
+	 * Snapshot in the users home directory
+	 */
+	public SessionSnapshot() {
+		this(Paths.get(System.getProperty("user.home"), ".datasetviewer", "session.bin"));
+	}
+	
+	public SessionSnapshot(Path file) {
+		this.file = file;
+	}
+	
+	/**
+	 * @return true if there is a snapshot to restore
+	 */
+	public boolean exists() {
+		return Files.isRegularFile(file);
+	}
+	
+	/**
+	 * Write the dataset directory, the feature grid size and all files and 
+	 * features of the index. The snapshot is written to a temporary file 
+	 * first and replaces the old snapshot when it is complete.
+	 * 
+	 * @param datasetDir
+	 * @param index
+	 * @throws IOException
+	 */
+	public void save(Path datasetDir, DatasetIndex index) throws IOException {
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FastGZIPOutputStream(Files.newOutputStream(tmp))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(datasetDir.toAbsolutePath().toString());
+			out.writeInt(index.getGridSize());
+			index.writeSnapshot(out);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Read the dataset directory of the snapshot without restoring the index
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public Path readDatasetDir() throws IOException {
+		try (DataInputStream in = open()) {
+			return Paths.get(in.readUTF());
+		} catch (IOException | RuntimeException e) {
+			discard();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Replace the content of the index with the snapshot. The files and 
+	 * features are added to the index while they are read. A snapshot with
+	 * a different grid size or with image files which have changed since it 
+	 * was written is rejected and discarded, like a damaged snapshot. The 
+	 * index may contain a part of the snapshot afterwards and should be cleared.
+	 * 
+	 * @param index
+	 * @param progress 
+	 * @return dataset directory of the snapshot
+	 * @throws IOException
+	 */
+	public Path restore(DatasetIndex index, LoadingProgress progress) throws IOException {
+		try (DataInputStream in = open()) {
+			Path datasetDir = Paths.get(in.readUTF());
+			int gridSize = in.readInt();
+			if(gridSize != index.getGridSize())
+				throw new IOException("Session snapshot " + file + " has the feature grid size " + gridSize + " instead of " + index.getGridSize());
+			index.readSnapshot(in, progress);
+			return datasetDir;
+		} catch (IOException | RuntimeException e) {
+			discard();
+			throw e;
+		} finally {
+			progress.finished();
+		}
+	}
+	
+	/**
+	 * Opens the snapshot and checks the file format and its version
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private DataInputStream open() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException("Unknown session snapshot format " + file);
+			int version = in.readInt();
+			if(version != VERSION)
+				throw new IOException("Session snapshot " + file + " has the version " + version + " instead of " + VERSION);
+			return in;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Renames a snapshot which can not be restored, so it is not read again
+	 * on the next start but can still be inspected.
+	 */
+	private void discard() {
+		if(!exists())
+			return;
+		try {
+			Files.move(file, file.resolveSibling(file.getFileName() + ".invalid"), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Compresses with the fastest level, the snapshot is written after every load
+	 */
+	private static class FastGZIPOutputStream extends GZIPOutputStream {
+		public FastGZIPOutputStream(OutputStream out) throws IOException {
+			super(out, 64 * 1024);
+			def.setLevel(Deflater.BEST_SPEED);
+		}
+	}
+}
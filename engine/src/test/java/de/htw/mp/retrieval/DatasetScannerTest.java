@@ -0,0 +1,126 @@
+package de.htw.mp.retrieval;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.htw.mp.retrieval.DatasetScanner.CategoryMode;
+
+/**
+ * Categories derived from the folders and filenames of a scanned directory tree
+ * 
+ * @author Nico Hezel
+ */
+public class DatasetScannerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path root;
+
+	@Before
+	public void createDataset() throws IOException {
+		root = folder.getRoot().toPath();
+		createFile("cats/small/cat_1.jpg");
+		createFile("cats/small/cat_2.JPEG");
+		createFile("cats/large.png");
+		createFile("dogs/dog_1.jpg");
+		createFile("dogs/notes.txt");
+		createFile("All/image.jpg");
+		createFile("bird_1.jpg");
+		createFile("All_1.png");
+	}
+
+	@Test
+	public void folderCategoriesAreRelativePaths() throws IOException {
+		Map<String, String> expected = new TreeMap<>();
+		expected.put("cats/small/cat_1.jpg", "cats/small");
+		expected.put("cats/small/cat_2.JPEG", "cats/small");
+		expected.put("cats/large.png", "cats");
+		expected.put("dogs/dog_1.jpg", "dogs");
+		expected.put("All/image.jpg", "All_");
+		expected.put("bird_1.jpg", "bird");
+		expected.put("All_1.png", "All_");
+		assertEquals(expected, scan(CategoryMode.Folder));
+	}
+
+	@Test
+	public void filenamePrefixCategories() throws IOException {
+		Map<String, String> expected = new TreeMap<>();
+		expected.put("cats/small/cat_1.jpg", "cat");
+		expected.put("cats/small/cat_2.JPEG", "cat");
+		expected.put("cats/large.png", "large.png");
+		expected.put("dogs/dog_1.jpg", "dog");
+		expected.put("All/image.jpg", "image.jpg");
+		expected.put("bird_1.jpg", "bird");
+		expected.put("All_1.png", "All_");
+		assertEquals(expected, scan(CategoryMode.FilenamePrefix));
+	}
+
+	@Test
+	public void reservedCategoryNamesAreEscaped() {
+		DatasetScanner scanner = new DatasetScanner(CategoryMode.Folder);
+		Path base = Paths.get("dataset");
+		assertEquals("All_", scanner.getCategory(base, base.resolve("All").resolve("a.jpg")));
+		assertEquals("All__", scanner.getCategory(base, base.resolve("All_").resolve("a.jpg")));
+		assertEquals("Allium", scanner.getCategory(base, base.resolve("Allium").resolve("a.jpg")));
+		assertEquals("x/All", scanner.getCategory(base, base.resolve("x").resolve("All").resolve("a.jpg")));
+	}
+
+	@Test
+	public void modeIsDetectedFromSubdirectories() throws IOException {
+		assertEquals(CategoryMode.Folder, CategoryMode.detect(root));
+		assertEquals(CategoryMode.FilenamePrefix, CategoryMode.detect(root.resolve("dogs")));
+	}
+
+	@Test
+	public void linksIntoTheDatasetAreSkipped() throws IOException {
+		try {
+			Files.createSymbolicLink(root.resolve("dogs/loop"), root);
+			Files.createSymbolicLink(root.resolve("kittens"), root.resolve("cats/small"));
+		} catch (UnsupportedOperationException | IOException e) {
+			Assume.assumeNoException(e);
+		}
+		
+		// every file is reported once with the category of its real location
+		assertEquals(7, scan(CategoryMode.Folder).size());
+		assertEquals("cats/small", scan(CategoryMode.Folder).get("cats/small/cat_1.jpg"));
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void missingRootFails() throws IOException {
+		new DatasetScanner(CategoryMode.Folder).scan(root.resolve("missing"), (category, file) -> {});
+	}
+
+	/**
+	 * @return category per image file path relative to the root, with slashes
+	 */
+	private Map<String, String> scan(CategoryMode mode) throws IOException {
+		Map<String, String> categories = new TreeMap<>();
+		new DatasetScanner(mode).scan(root, (category, file) -> {
+			synchronized (categories) {
+				String relative = root.relativize(file).toString().replace('\\', '/');
+				assertEquals("reported twice " + relative, null, categories.put(relative, category));
+			}
+		});
+		return categories;
+	}
+
+	private void createFile(String relative) throws IOException {
+		Path file = root.resolve(relative);
+		Files.createDirectories(file.getParent());
+		Files.createFile(file);
+	}
+}
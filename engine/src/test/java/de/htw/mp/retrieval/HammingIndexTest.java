@@ -0,0 +1,88 @@
+package de.htw.mp.retrieval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import de.htw.mp.model.FeatureContainer;
+
+/**
+ * Compares the radius search of the multi index hashing with a linear scan
+ * 
+ * @author Nico Hezel
+ */
+public class HammingIndexTest {
+
+	@Test
+	public void radiusSearchFindsAllHashes() {
+		Random rnd = new Random(42);
+		FeatureContainer[] features = createFeatures(rnd, 2000);
+		HammingIndex index = new HammingIndex(features);
+		assertEquals(features.length, index.size());
+
+		for (int q = 0; q < 50; q++) {
+			long query = flipBits(features[rnd.nextInt(features.length)].getPerceptualHash(), rnd.nextInt(6), rnd);
+			for (int radius : new int[] { 0, 1, 3, 4, 7, 8, 12, 16, 20, 64 }) {
+				Set<Integer> expected = new HashSet<>();
+				for (int i = 0; i < features.length; i++)
+					if(PerceptualHash.distance(query, features[i].getPerceptualHash()) <= radius)
+						expected.add(i);
+
+				// the ids are the positions of the features
+				Set<Integer> found = new HashSet<>();
+				for (int id : index.searchIds(query, radius)) {
+					assertTrue("duplicate id " + id, found.add(id));
+					assertSame(features[id], index.getFeature(id));
+				}
+				assertEquals("radius " + radius, expected, found);
+			}
+		}
+	}
+
+	@Test
+	public void searchIsSortedByDistance() {
+		Random rnd = new Random(7);
+		FeatureContainer[] features = createFeatures(rnd, 500);
+		HammingIndex index = new HammingIndex(features);
+
+		long query = features[0].getPerceptualHash();
+		List<FeatureContainer> result = index.search(query, 16);
+		int last = 0;
+		for (FeatureContainer feature : result) {
+			int distance = PerceptualHash.distance(query, feature.getPerceptualHash());
+			assertTrue(distance >= last && distance <= 16);
+			last = distance;
+		}
+		assertEquals(index.searchIds(query, 16).length, result.size());
+	}
+
+	/**
+	 * Groups of similar hashes, every group has a random center and members with a few flipped bits
+	 */
+	private static FeatureContainer[] createFeatures(Random rnd, int count) {
+		List<FeatureContainer> features = new ArrayList<>();
+		long center = rnd.nextLong();
+		for (int i = 0; i < count; i++) {
+			if(i % 20 == 0)
+				center = rnd.nextLong();
+			long hash = flipBits(center, rnd.nextInt(24), rnd);
+			features.add(new FeatureContainer("image" + i, "category", 0, Color.BLACK, new int[][] { { 0 } }, hash));
+		}
+		return features.toArray(new FeatureContainer[0]);
+	}
+
+	private static long flipBits(long hash, int bits, Random rnd) {
+		for (int i = 0; i < bits; i++)
+			hash ^= 1L << rnd.nextInt(Long.SIZE);
+		return hash;
+	}
+}
@@ -0,0 +1,140 @@
+package de.htw.mp.retrieval;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares the mean colors of the DC coefficients with the mean colors of the images decoded by ImageIO
+ * 
+ * @author Nico Hezel
+ */
+public class JpegDcDecoderTest {
+
+	/**
+	 * Maximal difference of a mean color channel. The chroma of subsampled
+	 * blocks at the border of the image includes the padding of the encoder,
+	 * the smaller the image the larger is its share.
+	 */
+	private static final double TOLERANCE = 2.0;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void baselineMatchesImageIO() throws IOException {
+		int[][] sizes = { { 64, 48 }, { 101, 67 }, { 640, 480 }, { 333, 1 }, { 1, 250 } };
+		for (int[] size : sizes) {
+			File file = folder.newFile(size[0] + "x" + size[1] + ".jpg");
+			writeImage(createImage(size[0], size[1], BufferedImage.TYPE_INT_RGB), "jpg", file, false);
+
+			long[] expected = imageIOSums(file);
+			long[] sums = new long[4];
+			assertTrue(file.getName(), JpegDcDecoder.sumColors(file, sums));
+			assertEquals(file.getName(), expected[3], sums[3]);
+			for (int c = 0; c < 3; c++)
+				assertEquals(file.getName() + " channel " + c, (double) expected[c] / expected[3], (double) sums[c] / sums[3], TOLERANCE);
+		}
+	}
+
+	@Test
+	public void sumsAreAccumulated() throws IOException {
+		File file = folder.newFile("image.jpg");
+		writeImage(createImage(64, 48, BufferedImage.TYPE_INT_RGB), "jpg", file, false);
+
+		long[] single = new long[4];
+		assertTrue(JpegDcDecoder.sumColors(file, single));
+		long[] twice = new long[4];
+		assertTrue(JpegDcDecoder.sumColors(file, twice));
+		assertTrue(JpegDcDecoder.sumColors(file, twice));
+		for (int i = 0; i < single.length; i++)
+			assertEquals(2 * single[i], twice[i]);
+	}
+
+	@Test
+	public void unsupportedFilesLeaveTheSumsUnchanged() throws IOException {
+		File png = folder.newFile("image.png");
+		writeImage(createImage(64, 48, BufferedImage.TYPE_INT_RGB), "png", png, false);
+		File progressive = folder.newFile("progressive.jpg");
+		writeImage(createImage(64, 48, BufferedImage.TYPE_INT_RGB), "jpg", progressive, true);
+		File gray = folder.newFile("gray.jpg");
+		writeImage(createImage(64, 48, BufferedImage.TYPE_BYTE_GRAY), "jpg", gray, false);
+		File truncated = folder.newFile("truncated.jpg");
+		File complete = folder.newFile("complete.jpg");
+		writeImage(createImage(256, 256, BufferedImage.TYPE_INT_RGB), "jpg", complete, false);
+		byte[] bytes = Files.readAllBytes(complete.toPath());
+		Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+
+		for (File file : new File[] { png, progressive, gray, truncated }) {
+			long[] sums = { 1, 2, 3, 4 };
+			assertFalse(file.getName(), JpegDcDecoder.sumColors(file, sums));
+			assertArrayEquals(file.getName(), new long[] { 1, 2, 3, 4 }, sums);
+		}
+	}
+
+	/**
+	 * Random overlapping ellipses, always the same for the same size
+	 */
+	private static BufferedImage createImage(int width, int height, int type) {
+		BufferedImage image = new BufferedImage(width, height, type);
+		Graphics2D g = image.createGraphics();
+		Random rnd = new Random(width * 31 + height);
+		for (int i = 0; i < 50; i++) {
+			g.setColor(new Color(rnd.nextInt(256), rnd.nextInt(256), rnd.nextInt(256)));
+			g.fillOval(rnd.nextInt(width), rnd.nextInt(height), 1 + rnd.nextInt(width), 1 + rnd.nextInt(height));
+		}
+		g.dispose();
+		return image;
+	}
+
+	private static void writeImage(BufferedImage image, String format, File file, boolean progressive) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if(progressive)
+			param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * Red, green and blue sums and the number of pixels of the image decoded by ImageIO
+	 */
+	private static long[] imageIOSums(File file) throws IOException {
+		BufferedImage image = ImageIO.read(file);
+		long[] sums = new long[4];
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				int rgb = image.getRGB(x, y);
+				sums[0] += (rgb >> 16) & 0xff;
+				sums[1] += (rgb >> 8) & 0xff;
+				sums[2] += rgb & 0xff;
+			}
+		}
+		sums[3] = (long) image.getWidth() * image.getHeight();
+		return sums;
+	}
+}
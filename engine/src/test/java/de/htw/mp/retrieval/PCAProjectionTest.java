@@ -0,0 +1,121 @@
+package de.htw.mp.retrieval;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Fits the projection on samples with a known structure
+ * 
+ * @author Nico Hezel
+ */
+public class PCAProjectionTest {
+
+	private static final int LENGTH = 60;
+
+	@Test
+	public void rankTwoSamplesAreProjectedWithoutLoss() {
+		Random rnd = new Random(1);
+		float[] u = randomDirection(rnd);
+		float[] v = randomDirection(rnd);
+		List<float[]> samples = new ArrayList<>();
+		for (int s = 0; s < 200; s++)
+			samples.add(combine(rnd.nextGaussian() * 10, u, rnd.nextGaussian() * 3, v));
+
+		PCAProjection pca = PCAProjection.fit(samples, 2);
+		assertEquals(2, pca.getDimensions());
+		assertEquals(LENGTH, pca.getInputLength());
+		assertEquals(1, pca.getExplainedVariance(), 1e-3);
+
+		// all distances are preserved inside the plane of the samples
+		for (int i = 0; i < 20; i++) {
+			float[] a = samples.get(rnd.nextInt(samples.size()));
+			float[] b = samples.get(rnd.nextInt(samples.size()));
+			assertEquals(euclidean(a, b), PCAProjection.distance(pca.project(a), pca.project(b)), 1e-2);
+		}
+	}
+
+	@Test
+	public void componentsAreOrderedByVariance() {
+		Random rnd = new Random(2);
+		float[] u = randomDirection(rnd);
+		float[] v = randomDirection(rnd);
+		List<float[]> samples = new ArrayList<>();
+		for (int s = 0; s < 300; s++)
+			samples.add(combine(rnd.nextGaussian(), u, rnd.nextGaussian() * 20, v));
+
+		PCAProjection pca = PCAProjection.fit(samples, 2);
+		double[] variance = new double[2];
+		for (float[] sample : samples) {
+			float[] embedding = pca.project(sample);
+			for (int t = 0; t < variance.length; t++)
+				variance[t] += embedding[t] * embedding[t];
+		}
+		assertTrue(variance[0] > 100 * variance[1]);
+	}
+
+	@Test
+	public void dimensionsAreLimitedBySamples() {
+		List<float[]> samples = new ArrayList<>();
+		samples.add(new float[] { 1, 2, 3 });
+		samples.add(new float[] { 4, 0, 1 });
+		samples.add(new float[] { 0, 5, 2 });
+		PCAProjection pca = PCAProjection.fit(samples, 10);
+		assertTrue(pca.getDimensions() <= 3);
+		assertEquals(1, pca.getExplainedVariance(), 1e-6);
+
+		assertNull(PCAProjection.fit(samples.subList(0, 1), 2));
+		assertNull(PCAProjection.fit(samples, 0));
+		assertNull(PCAProjection.fit(Collections.<float[]>emptyList(), 2));
+	}
+
+	@Test
+	public void missingEmbeddingsAreFarAway() {
+		assertEquals(Double.MAX_VALUE, PCAProjection.distance(null, new float[2]), 0);
+		assertEquals(Double.MAX_VALUE, PCAProjection.distance(new float[2], null), 0);
+		assertEquals(5, PCAProjection.distance(new float[] { 0, 0 }, new float[] { 3, 4 }), 1e-9);
+	}
+
+	@Test
+	public void pixelsAreSplitIntoChannels() {
+		float[] vector = PCAProjection.toVector(new int[] { 0x102030, 0xFFFFFF00 });
+		assertArrayEquals(new float[] { 0x10, 0x20, 0x30, 0xFF, 0xFF, 0 }, vector, 0);
+	}
+
+	/**
+	 * Offset plus two weighted directions
+	 */
+	private static float[] combine(double a, float[] u, double b, float[] v) {
+		float[] vector = new float[LENGTH];
+		for (int i = 0; i < LENGTH; i++)
+			vector[i] = (float)(100 + i + a * u[i] + b * v[i]);
+		return vector;
+	}
+
+	private static float[] randomDirection(Random rnd) {
+		float[] direction = new float[LENGTH];
+		double norm = 0;
+		for (int i = 0; i < LENGTH; i++) {
+			direction[i] = (float) rnd.nextGaussian();
+			norm += direction[i] * direction[i];
+		}
+		for (int i = 0; i < LENGTH; i++)
+			direction[i] /= Math.sqrt(norm);
+		return direction;
+	}
+
+	private static double euclidean(float[] a, float[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += (a[i] - b[i]) * (a[i] - b[i]);
+		return Math.sqrt(sum);
+	}
+}
@@ -0,0 +1,105 @@
+package de.htw.mp.retrieval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import de.htw.mp.model.FeatureType;
+
+/**
+ * Eviction and version invalidation of the query cache
+ * 
+ * @author Nico Hezel
+ */
+public class QueryCacheTest {
+
+	/**
+	 * Estimated size of a cached value of 100 bytes including the entry overhead
+	 */
+	private static final long ENTRY_SIZE = 128 + 100;
+
+	@Test
+	public void leastRecentlyUsedEntriesAreEvicted() {
+		QueryCache<String> cache = new QueryCache<>(3 * ENTRY_SIZE, value -> 100);
+		cache.put(key("a"), "A", 1);
+		cache.put(key("b"), "B", 1);
+		cache.put(key("c"), "C", 1);
+		assertEquals("A", cache.get(key("a"), 1));
+
+		// b is the least recently used entry now
+		cache.put(key("d"), "D", 1);
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3 * ENTRY_SIZE, cache.getMemoryUsage());
+		assertNull(cache.get(key("b"), 1));
+		assertEquals("A", cache.get(key("a"), 1));
+		assertEquals("C", cache.get(key("c"), 1));
+		assertEquals("D", cache.get(key("d"), 1));
+		assertEquals(4, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void olderVersionsAreInvalidated() {
+		QueryCache<String> cache = new QueryCache<>(10 * ENTRY_SIZE, value -> 100);
+		cache.put(key("a"), "A", 1);
+		assertEquals("A", cache.get(key("a"), 1));
+
+		assertNull(cache.get(key("a"), 2));
+		assertEquals(1, cache.getInvalidations());
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMemoryUsage());
+
+		// the invalidated entry is gone, also for its own version
+		assertNull(cache.get(key("a"), 1));
+		assertEquals(1, cache.getInvalidations());
+		assertEquals(2, cache.getMisses());
+
+		cache.put(key("a"), "A2", 2);
+		assertEquals("A2", cache.get(key("a"), 2));
+	}
+
+	@Test
+	public void replacedAndOversizedValuesAreAccounted() {
+		QueryCache<String> cache = new QueryCache<>(2 * ENTRY_SIZE, value -> value.length());
+		cache.put(key("a"), repeat(100), 1);
+		cache.put(key("a"), repeat(50), 1);
+		assertEquals(1, cache.size());
+		assertEquals(128 + 50, cache.getMemoryUsage());
+
+		// larger than the whole budget, the old value is removed as well
+		cache.put(key("a"), repeat(1000), 1);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMemoryUsage());
+		assertEquals(0, cache.getEvictions());
+
+		cache.put(key("b"), repeat(100), 1);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMemoryUsage());
+	}
+
+	@Test
+	public void keysDifferInEveryComponent() {
+		QueryCache.Key key = new QueryCache.Key("image", FeatureType.MeanColor, "All", 5);
+		assertEquals(key, new QueryCache.Key("image", FeatureType.MeanColor, "All", 5));
+		assertEquals(key.hashCode(), new QueryCache.Key("image", FeatureType.MeanColor, "All", 5).hashCode());
+		assertNotEquals(key, new QueryCache.Key("other", FeatureType.MeanColor, "All", 5));
+		assertNotEquals(key, new QueryCache.Key("image", FeatureType.MeanImage, "All", 5));
+		assertNotEquals(key, new QueryCache.Key("image", FeatureType.MeanColor, "Categories", 5));
+		assertNotEquals(key, new QueryCache.Key("image", FeatureType.MeanColor, "All", 10));
+	}
+
+	private static QueryCache.Key key(String queryId) {
+		return new QueryCache.Key(queryId, FeatureType.MeanColor, "All", 5);
+	}
+
+	private static String repeat(int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			sb.append('x');
+		return sb.toString();
+	}
+}
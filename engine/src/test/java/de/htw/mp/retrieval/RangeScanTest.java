@@ -0,0 +1,80 @@
+package de.htw.mp.retrieval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.htw.mp.model.FeatureContainer;
+import de.htw.mp.model.FeatureType;
+
+/**
+ * Compares the merged top k of the parallel range scans with a sequential top k.
+ * Few distinct colors produce many equal distances.
+ * 
+ * @author Nico Hezel
+ */
+public class RangeScanTest {
+
+	private final RetrievalEngine engine = new RetrievalEngine();
+
+	@Test
+	public void parallelScanMatchesSequentialTopK() {
+		Random rnd = new Random(3);
+		FeatureContainer[] database = createDatabase(rnd, 20000, 12);
+		assertTrue(database.length >= RetrievalEngine.PARALLEL_THRESHOLD);
+
+		for (int q = 0; q < 10; q++) {
+			FeatureContainer query = database[rnd.nextInt(database.length)];
+			for (int k : new int[] { 1, 7, 100, 3000, database.length + 10 })
+				assertSameRanking("k=" + k, sequentialTopK(query, database, k), engine.retrieve(query, database, FeatureType.MeanColor, k));
+		}
+	}
+
+	@Test
+	public void smallDatabaseMatchesSequentialTopK() {
+		Random rnd = new Random(4);
+		FeatureContainer[] database = createDatabase(rnd, 500, 5);
+		FeatureContainer query = database[0];
+		for (int k : new int[] { 1, 10, 499, 500, 600 })
+			assertSameRanking("k=" + k, sequentialTopK(query, database, k), engine.retrieve(query, database, FeatureType.MeanColor, k));
+		assertEquals(0, engine.retrieve(query, database, FeatureType.MeanColor, 0).size());
+	}
+
+	/**
+	 * Stable sort of the whole database, equal distances keep the order of the database
+	 */
+	private List<FeatureContainer> sequentialTopK(FeatureContainer query, FeatureContainer[] database, int k) {
+		List<FeatureContainer> sorted = new ArrayList<>(Arrays.asList(database));
+		sorted.sort(Comparator.comparingDouble(feature -> engine.getDistanceBy(FeatureType.MeanColor, query, feature)));
+		return sorted.subList(0, Math.min(k, sorted.size()));
+	}
+
+	private static void assertSameRanking(String message, List<FeatureContainer> expected, List<FeatureContainer> actual) {
+		assertEquals(message, expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertSame(message + " rank " + i, expected.get(i), actual.get(i));
+	}
+
+	/**
+	 * Images with one of a few random mean colors
+	 */
+	private static FeatureContainer[] createDatabase(Random rnd, int size, int colors) {
+		Color[] palette = new Color[colors];
+		for (int i = 0; i < colors; i++)
+			palette[i] = new Color(rnd.nextInt(256), rnd.nextInt(256), rnd.nextInt(256));
+
+		FeatureContainer[] database = new FeatureContainer[size];
+		for (int i = 0; i < size; i++)
+			database[i] = new FeatureContainer("image" + i, "category", 0, palette[rnd.nextInt(colors)], new int[][] { { 0 } }, 0);
+		return database;
+	}
+}
@@ -2,6 +2,7 @@ package de.htw.mp.ui;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
@@ -13,31 +14,44 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import javax.imageio.ImageIO;
 import javax.swing.ButtonGroup;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ListSelectionEvent;
 
 import de.htw.mp.model.FeatureContainer;
+import de.htw.mp.model.FeatureType;
+import de.htw.mp.model.Prediction;
+import de.htw.mp.retrieval.DatasetIndex;
+import de.htw.mp.retrieval.DuplicateDetector;
+import de.htw.mp.retrieval.IndexSnapshot;
+import de.htw.mp.retrieval.LoadingProgress;
+import de.htw.mp.retrieval.QueryCache;
+import de.htw.mp.retrieval.RetrievalEngine;
+import de.htw.mp.retrieval.SessionSnapshot;
 import de.htw.mp.ui.component.ColorView;
 import de.htw.mp.ui.component.ImageView;
 
@@ -51,34 +65,57 @@ public abstract class DatasetViewerBase extends JPanel {
 
 	private static final long serialVersionUID = 8420613964694777857L;
 	
-	/**
-	 * Type of features
-	 */
-	public static enum FeatureType { 
-		MeanColor, MeanImage;
-		
-		public static FeatureType get(String value) {
-			return FeatureType.valueOf(value.trim().replaceAll(" ", ""));
-		}
-	};	
-
 	// spacing and border size
 	private static final int border = 10;
 	
 	/**
-	 * For each image category there exists a file list
+	 * Save the loaded dataset and restore it on the next start, 
+	 * disabled with -Ddatasetviewer.session=false
+	 */
+	private static final boolean SESSION_ENABLED = !"false".equalsIgnoreCase(System.getProperty("datasetviewer.session"));
+	
+	/**
+	 * Print the cache and memory statistics after every search, 
+	 * enabled with -Ddatasetviewer.stats=true
+	 */
+	private static final boolean PRINT_STATISTICS = Boolean.getBoolean("datasetviewer.stats");
+	
+	/**
+	 * Compare every cascaded search with the exhaustive search, 
+	 * enabled with -Ddatasetviewer.evaluateCascade=true
+	 */
+	private static final boolean EVALUATE_CASCADE = Boolean.getBoolean("datasetviewer.evaluateCascade");
+	
+	/**
+	 * Number of duplicate clusters and names per cluster listed in the summary
+	 */
+	private static final int MAX_LISTED_CLUSTERS = 10;
+	private static final int MAX_LISTED_NAMES = 5;
+	
+	/**
+	 * Last opened dataset and its features
+	 */
+	private final SessionSnapshot session = new SessionSnapshot();
+	
+	/**
+	 * Directory of the current dataset
 	 */
-	private Map<String, File[]> categoryToFileList = new HashMap<>();
+	private volatile File lastDatasetDir = null;
 	
 	/**
-	 * Map from category name to the feature container of a category
+	 * Headless engine holding the features of the loaded dataset
 	 */
-	private Map<String, FeatureContainer> categoryFeatures = new HashMap<>();
+	protected final RetrievalEngine engine = new RetrievalEngine();
 	
 	/**
-	 * Map from filename to feature container for the image
+	 * Features of the loaded dataset
 	 */
-	private Map<String, FeatureContainer> imageFeatures = new HashMap<>();
+	private final DatasetIndex dataset = engine.getIndex();
+	
+	/**
+	 * Search results of previous queries, limited to 16MB
+	 */
+	private QueryCache<SearchResult> resultCache = new QueryCache<>(16 * 1024 * 1024, SearchResult::estimateSize);
 	
 	/**
 	 * Content of the left list
@@ -89,8 +126,8 @@ public abstract class DatasetViewerBase extends JPanel {
 	/**
 	 * Content of the right list
 	 */
-	private JList<String> imageFileList = null;
-	private DefaultListModel<String> imageFileListModel = null;
+	private JList<File> imageFileList = null;
+	private DefaultListModel<File> imageFileListModel = null;
 	
 	/**
 	 * Content of the ranking list
@@ -118,6 +155,32 @@ public abstract class DatasetViewerBase extends JPanel {
 	 */
 	private JTextField kNearestNeighboursText = null;
 	
+	/**
+	 * Weight the votes of the neighbours by their distance
+	 */
+	private JCheckBox distanceWeightedCheckBox = null;
+	
+	/**
+	 * Number of categories probed by the cascaded search (0 = adaptive)
+	 */
+	private JTextField probedCategoriesText = null;
+	
+	/**
+	 * Selected category whose features are displayed once they are calculated
+	 */
+	private String pendingDisplayCategory = null;
+	
+	/**
+	 * Opens a new dataset, disabled while a dataset is loading
+	 */
+	private JButton openDirectoryBtn = null;
+	private JButton findDuplicatesBtn = null;
+	
+	/**
+	 * Progress of the dataset loading
+	 */
+	private JProgressBar loadingProgressBar = null;
+	
 	/**
 	 * Which type of feature was selected
 	 */
@@ -130,7 +193,7 @@ public abstract class DatasetViewerBase extends JPanel {
 
 	/**
 	 * Constructor. Constructs the layout of the GUI components and loads the
-	 * initial image.
+	 * initial image and the last session in the background.
 	 */
 	public DatasetViewerBase() {
 		super(new BorderLayout(border, border));
@@ -145,11 +208,26 @@ public abstract class DatasetViewerBase extends JPanel {
 				menuPanel.setPreferredSize(new Dimension(800, 200));
 				browsePanel.add(menuPanel, BorderLayout.NORTH);
 	
-				// add open folder button
+				// add open folder button and the loading progress
 				{
-					JButton openDirectoryBtn = new JButton("Open Folder");
+					JPanel openDirectoryPanel = new JPanel(new BorderLayout(border, border));
+					menuPanel.add(openDirectoryPanel);
+					
+					JPanel buttonPanel = new JPanel(new GridLayout(2, 1, border, border));
+					openDirectoryPanel.add(buttonPanel, BorderLayout.CENTER);
+					
+					openDirectoryBtn = new JButton("Open Folder");
 					openDirectoryBtn.addActionListener(this::onOpenDirectoryClick); // click event handler
-					menuPanel.add(openDirectoryBtn);
+					buttonPanel.add(openDirectoryBtn);
+					
+					findDuplicatesBtn = new JButton("Find Duplicates");
+					findDuplicatesBtn.addActionListener(this::onFindDuplicatesClick); // click event handler
+					buttonPanel.add(findDuplicatesBtn);
+					
+					loadingProgressBar = new JProgressBar();
+					loadingProgressBar.setStringPainted(true);
+					loadingProgressBar.setString("");
+					openDirectoryPanel.add(loadingProgressBar, BorderLayout.SOUTH);
 				}
 	
 				// add category combo box and a describing label
@@ -192,6 +270,12 @@ public abstract class DatasetViewerBase extends JPanel {
 					imageFileListModel = new DefaultListModel<>();
 					imageFileList = new JList<>(imageFileListModel);				
 					imageFileList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+					imageFileList.setCellRenderer(new DefaultListCellRenderer() {
+						@Override
+						public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+							return super.getListCellRendererComponent(list, ((File)value).getName(), index, isSelected, cellHasFocus);
+						}
+					});
 					imageFileList.addListSelectionListener(this::onImageFileListChange); // selection change handler
 					imageFileList.addMouseListener(new MouseAdapter() {
 					    public void mouseClicked(MouseEvent evt) {
@@ -255,50 +339,88 @@ public abstract class DatasetViewerBase extends JPanel {
 				meanImageButton.setActionCommand("Mean Image");
 				searchOptionPanel.add(meanImageButton, c);
 				
+				// MeanImagePyramid Radio Button
+				c.gridy = 4;
+				JRadioButton meanImagePyramidButton = new JRadioButton("Mean Image Pyramid");
+				meanImagePyramidButton.setActionCommand("Mean Image Pyramid");
+				searchOptionPanel.add(meanImagePyramidButton, c);
+				
+				// MeanImagePCA Radio Button
+				c.gridy = 5;
+				JRadioButton meanImagePCAButton = new JRadioButton("Mean Image PCA");
+				meanImagePCAButton.setActionCommand("Mean Image PCA");
+				searchOptionPanel.add(meanImagePCAButton, c);
+				
+				// PerceptualHash Radio Button
+				c.gridy = 6;
+				JRadioButton perceptualHashButton = new JRadioButton("Perceptual Hash");
+				perceptualHashButton.setActionCommand("Perceptual Hash");
+				searchOptionPanel.add(perceptualHashButton, c);
+				
 			    //Group the radio buttons.
 			    featureGroup = new ButtonGroup();
 			    featureGroup.add(meanColorButton);
 			    featureGroup.add(meanImageButton);
+			    featureGroup.add(meanImagePyramidButton);
+			    featureGroup.add(meanImagePCAButton);
+			    featureGroup.add(perceptualHashButton);
 			    
 			    // spacer
 			    c.weighty = 0.05; // request any extra vertical space
-				c.gridy = 4;
+				c.gridy = 7;
 				JLabel spacer1 = new JLabel("");
 				searchOptionPanel.add(spacer1, c);
 			    
 				// Database Label
 				c.weighty = 0; // request any extra vertical space
-				c.gridy = 5;				
+				c.gridy = 8;				
 				JLabel databaseLabel = new JLabel("Database");
 				searchOptionPanel.add(databaseLabel, c);
 				
 				// AllImages Radio Button
-				c.gridy = 6;
+				c.gridy = 9;
 				JRadioButton allImagesButton = new JRadioButton("All Images");
 				allImagesButton.setActionCommand("All Images");
 				allImagesButton.setSelected(true);
 				searchOptionPanel.add(allImagesButton, c);
 
 				// Categories Radio Button
-				c.gridy = 7;
+				c.gridy = 10;
 				JRadioButton categoriesButton = new JRadioButton("Categories");
 				categoriesButton.setActionCommand("Categories");
 				searchOptionPanel.add(categoriesButton, c);
 				
+				// Cascaded Radio Button
+				c.gridy = 11;
+				JRadioButton cascadedButton = new JRadioButton("Cascaded");
+				cascadedButton.setActionCommand("Cascaded");
+				searchOptionPanel.add(cascadedButton, c);
+				
 			    //Group the radio buttons.
 			    databaseGroup = new ButtonGroup();
 			    databaseGroup.add(allImagesButton);
 			    databaseGroup.add(categoriesButton);
+			    databaseGroup.add(cascadedButton);
+			    
+				// probed categories label
+				c.gridy = 12;
+				JLabel probedCategoriesLabel = new JLabel("Probed Categories (0 = adaptive)");
+				searchOptionPanel.add(probedCategoriesLabel, c);
+				
+				// probed categories value
+				c.gridy = 13;
+				probedCategoriesText = new JTextField("3");
+				searchOptionPanel.add(probedCategoriesText, c);
 			    
 			    // spacer
 			    c.weighty = 0.05; // request any extra vertical space
-				c.gridy = 8;
+				c.gridy = 14;
 				JLabel spacer2 = new JLabel("");
 				searchOptionPanel.add(spacer2, c);
 			    
 				// Ranking Label
 				c.weighty = 0; // request any extra vertical space
-				c.gridy = 9;				
+				c.gridy = 15;				
 				JLabel rankingLabel = new JLabel("Ranking");
 				searchOptionPanel.add(rankingLabel, c);				
 
@@ -309,27 +431,32 @@ public abstract class DatasetViewerBase extends JPanel {
 				rankingList.addListSelectionListener(this::onCategoryListChange); // selection change  handler
 				JScrollPane listScroller = new JScrollPane(rankingList);
 				c.weighty = .8; // request any extra vertical space
-				c.gridy = 10;
+				c.gridy = 16;
 				searchOptionPanel.add(listScroller, c);
 				
 				// k nearest neighbours
 				c.weighty = 0; // request any extra vertical space
-				c.gridy = 11;				
+				c.gridy = 17;				
 				JLabel kNearestNeighboursLabel = new JLabel("k-Nearest Neighbours");
 				searchOptionPanel.add(kNearestNeighboursLabel, c);		
 				
 				// k nearest neighbours value
-				c.gridy = 12;				
+				c.gridy = 18;				
 				kNearestNeighboursText = new JTextField("5");
 				searchOptionPanel.add(kNearestNeighboursText, c);		
 				
+				// distance weighted votes
+				c.gridy = 19;				
+				distanceWeightedCheckBox = new JCheckBox("Distance Weighted");
+				searchOptionPanel.add(distanceWeightedCheckBox, c);		
+				
 				// prediction label
-				c.gridy = 13;				
+				c.gridy = 20;				
 				JLabel predictionLabel = new JLabel("Prediction:");
 				searchOptionPanel.add(predictionLabel, c);		
 				
 				// prediction value
-				c.gridy = 14;				
+				c.gridy = 21;				
 				predictionText = new JTextField("");
 				predictionText.setEnabled(false);
 				searchOptionPanel.add(predictionText, c);	
@@ -338,16 +465,47 @@ public abstract class DatasetViewerBase extends JPanel {
 			add(searchPanel, BorderLayout.EAST);
 		}
 		
-		// load the initial image
+		// load the initial image in the background, the window is shown immediately
+		new Thread(this::loadInitialImage, "InitialImageLoader").start();
+		
+		// restore the last dataset in the background
+		if(SESSION_ENABLED && session.exists()) {
+			LoadingProgress progress = new LoadingProgress();
+			categoryListModel.addElement(IndexSnapshot.ALL_CATEGORY);
+			startLoading(progress, () -> {
+				try {
+					lastDatasetDir = session.restore(dataset, progress).toFile();
+				} catch (IOException e) {
+					e.printStackTrace();
+					
+					// the snapshot is outdated or damaged, remove what was restored so far
+					dataset.clear();
+					SwingUtilities.invokeLater(this::resetAll);
+				}
+			});
+		}
+	};
+	
+	/**
+	 * Loads the initial image and displays it together with its mean 
+	 * color, unless the user already selected something else.
+	 */
+	private void loadInitialImage() {
 		try {
 			URL res = getClass().getResource("/Hummel.jpg");
 			File imageFile = Paths.get(res.toURI()).toFile();
-			updateMeanColorAndImage(getMeanColor(imageFile), getMeanImage(imageFile));
-			imageDisplay.setImage(ImageIO.read(imageFile));
+			Color meanColor = getMeanColor(imageFile);
+			BufferedImage image = ImageIO.read(imageFile);
+			SwingUtilities.invokeLater(() -> {
+				if(categoryList.isSelectionEmpty()) {
+					colorDisplay.setColor(meanColor);
+					imageDisplay.setImage(image);
+				}
+			});
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-	};
+	}
 	
 	/**
 	 * If a double click is registered a search will be triggered.
@@ -361,29 +519,114 @@ public abstract class DatasetViewerBase extends JPanel {
 
         	// get the query
             int index = imageFileList.locationToIndex(click.getPoint());
-            String filename = imageFileListModel.getElementAt(index);
-			FeatureContainer query = imageFeatures.get(filename);
+            File file = imageFileListModel.getElementAt(index);
+            
+            // all steps of the search use the same version of the dataset
+            IndexSnapshot snapshot = dataset.snapshot();
+			FeatureContainer query = snapshot.getImageFeature(file);
+			
+			// features of the image are not calculated yet
+			if(query == null) 
+				return;
 
 			// get the database
 			String dbName = databaseGroup.getSelection().getActionCommand();
-			Map<String, FeatureContainer> database = ("All Images".equalsIgnoreCase(dbName)) ? imageFeatures : categoryFeatures;
-
-			// sort the elements
+			FeatureContainer[] database = ("All Images".equalsIgnoreCase(dbName)) ? snapshot.getImageFeatures() : snapshot.getCategoryFeatures();
+			int kNN = Integer.parseInt(kNearestNeighboursText.getText());
+			boolean distanceWeighted = distanceWeightedCheckBox.isSelected();
 			FeatureType featureType = FeatureType.get(featureGroup.getSelection().getActionCommand());
-			List<FeatureContainer> result = retrieve(query, database.values().toArray(new FeatureContainer[0]), featureType);
+			
+			// the database selection includes all options which change the result 
+			String dbSelection = dbName + (distanceWeighted ? "/weighted" : "");
+			if("Cascaded".equalsIgnoreCase(dbName))
+				dbSelection += "/" + probedCategoriesText.getText().trim();
+			
+			// ask the cache first
+			QueryCache.Key key = new QueryCache.Key(IndexSnapshot.fileId(file), featureType, dbSelection, kNN);
+			long version = snapshot.getVersion();
+			SearchResult searchResult = resultCache.get(key, version);
+			if(searchResult == null) {
+
+				// sort the elements
+				List<FeatureContainer> result;
+				if("Cascaded".equalsIgnoreCase(dbName)) {
+					int probes = Integer.parseInt(probedCategoriesText.getText().trim());
+					result = searchCascaded(snapshot, query, featureType, probes, kNN);
+				} else {
+					result = retrieve(query, database, featureType);
+				}
+				
+				// make a prediction
+				Prediction prediction = classify(query, result, featureType, kNN, distanceWeighted);
+				searchResult = new SearchResult(result, prediction);
+				resultCache.put(key, searchResult, version);
+			}
+			if(PRINT_STATISTICS) {
+				System.out.println(resultCache);
+				System.out.println(dataset.getFeatureStore());
+			}
 
 			// list all search results
 			rankingListModel.clear();
-			for (FeatureContainer element : result)
+			for (FeatureContainer element : searchResult.ranking)
 				rankingListModel.addElement(element.getName());
 
-			// make a prediction
-			int kNN = Integer.parseInt(kNearestNeighboursText.getText());
-			String prediction = classify(result, kNN);
-			predictionText.setText(prediction);
+			// show the prediction
+			Prediction prediction = searchResult.prediction;
+			predictionText.setText((prediction == null) ? "" : prediction.toString());
 		}
 	}
 
+	/**
+	 * Runs the two stage search. If enabled, its recall and speedup compared 
+	 * to the exhaustive search over all images are reported on the console.
+	 * 
+	 * @param snapshot
+	 * @param query
+	 * @param featureType
+	 * @param probes number of categories to search in, 0 for adaptive
+	 * @param k number of nearest neighbours used for the recall
+	 * @return sorted list of the images inside the probed categories
+	 */
+	private List<FeatureContainer> searchCascaded(IndexSnapshot snapshot, FeatureContainer query, FeatureType featureType, int probes, int k) {
+		long start = System.nanoTime();
+		List<FeatureContainer> result = retrieveCascaded(query, snapshot.getCategoryFeatures(), snapshot.getCategoryImageFeatures(), featureType, probes);
+		long cascadedTime = System.nanoTime() - start;
+		
+		if(EVALUATE_CASCADE)
+			evaluateCascaded(snapshot, query, featureType, k, result, cascadedTime);
+		return result;
+	}
+	
+	/**
+	 * Compare the result of the two stage search with the exhaustive search over all images
+	 * 
+	 * @param snapshot
+	 * @param query
+	 * @param featureType
+	 * @param k number of nearest neighbours used for the recall
+	 * @param result of the two stage search
+	 * @param cascadedTime duration of the two stage search in nanoseconds
+	 */
+	private void evaluateCascaded(IndexSnapshot snapshot, FeatureContainer query, FeatureType featureType, int k, List<FeatureContainer> result, long cascadedTime) {
+		FeatureContainer[] categories = snapshot.getCategoryFeatures();
+		
+		// exhaustive search as the reference
+		long start = System.nanoTime();
+		List<FeatureContainer> exact = retrieve(query, snapshot.getImageFeatures(), featureType);
+		long exactTime = System.nanoTime() - start;
+		
+		// how many of the true k nearest neighbours did the cascade find
+		int topK = Math.min(k, exact.size());
+		Set<FeatureContainer> found = new HashSet<>(result.subList(0, Math.min(topK, result.size())));
+		long hits = exact.subList(0, topK).stream().filter(found::contains).count();
+		long probed = result.stream().map(FeatureContainer::getCategory).distinct().count();
+		
+		System.out.printf("Cascaded search: probed %d/%d categories, scanned %d/%d images, recall@%d %.2f, speedup %.1fx%n",
+				probed, categories.length, result.size(), exact.size(), topK,
+				(topK == 0) ? 1.0 : (double) hits / topK, (double) exactTime / Math.max(1, cascadedTime));
+	}
+
 	/**
 	 * Analysis all images inside the selected category and paint their mean
 	 * color in the color panel. Lists all image files of the category in the
@@ -396,12 +639,14 @@ public abstract class DatasetViewerBase extends JPanel {
 			
 			String categoryName = categoryList.getSelectedValue();
 			if(categoryName != null) {				
-				updateMeanColorAndImage(this.categoryFeatures.get(categoryName));		
+				FeatureContainer categoryFeature = dataset.getCategoryFeature(categoryName);
+				updateMeanColorAndImage(categoryFeature);		
+				pendingDisplayCategory = (categoryFeature != null) ? null : categoryName;
 				
-				// list all the image file names
+				// list all the image files
 				imageFileListModel.clear();
-				for (File file : categoryToFileList.get(categoryName))
-					imageFileListModel.addElement(file.toPath().getFileName().toString());
+				for (File file : dataset.getFiles(categoryName))
+					imageFileListModel.addElement(file);
 			}
 		}
 	}
@@ -413,8 +658,9 @@ public abstract class DatasetViewerBase extends JPanel {
 	 */
 	private void onImageFileListChange(ListSelectionEvent event) {
 		if (event.getValueIsAdjusting() == false) {
-			String filename = imageFileList.getSelectedValue();
-			updateMeanColorAndImage(this.imageFeatures.get(filename));
+			File file = imageFileList.getSelectedValue();
+			updateMeanColorAndImage((file == null) ? null : dataset.getImageFeature(file));
+			pendingDisplayCategory = null;
 		}
 	}
 	
@@ -424,7 +670,10 @@ public abstract class DatasetViewerBase extends JPanel {
 	 * @param imageFiles
 	 */
 	private void updateMeanColorAndImage(FeatureContainer feature) {
-		updateMeanColorAndImage(feature.getMeanColor(), feature.getMeanImage());
+		if(feature == null) 
+			updateMeanColorAndImage(Color.WHITE, null);
+		else
+			updateMeanColorAndImage(feature.getMeanColor(), feature.getMeanImage());
 	}
 	
 	/**
@@ -448,7 +697,7 @@ public abstract class DatasetViewerBase extends JPanel {
 	private void onOpenDirectoryClick(ActionEvent event) {
 
 		// open the directory chooser
-		JFileChooser dirChooser = new JFileChooser(new File("dataset"));
+		JFileChooser dirChooser = new JFileChooser((lastDatasetDir != null) ? lastDatasetDir : new File("dataset"));
 		dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
 		if (dirChooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
 			File dir = dirChooser.getSelectedFile();
@@ -456,76 +705,164 @@ public abstract class DatasetViewerBase extends JPanel {
 			// abort
 			if(dir == null) return;
 
-			// read all image files from the directory
-			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.toPath(), "*.{jpg,jpeg,png}")) {
-				Map<String, List<File>> categories = new HashMap<>();
-
-				for (Path imageFile : files) {
-					String name = imageFile.getFileName().toString().split("_")[0];
-					List<File> cat = categories.getOrDefault(name, new ArrayList<File>());
-					cat.add(imageFile.toFile());
-					categories.putIfAbsent(name, cat);
-				}
-				
-				// copy over
-				categoryToFileList.clear();
-				categories.forEach((key, value) -> { categoryToFileList.put(key, value.toArray(new File[0])); });
-				
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-			
-			// -------------------- Build Category List -------------------------
-			// add an "All" category
-			File[] all = categoryToFileList.values()
-					 					   .stream()
-					 					   .flatMap(files -> Arrays.stream(files))
-					 					   .toArray(File[]::new);
-
-			// list all category names
+			// calculate all the mean colors and mean images for all files in the background
 			resetAll();
-			categoryListModel.addElement("All");
-			categoryToFileList.keySet().stream().sorted().forEach(name -> categoryListModel.addElement(name));
+			categoryListModel.addElement(IndexSnapshot.ALL_CATEGORY);
+			dataset.clear();
+			lastDatasetDir = dir;
+			LoadingProgress progress = new LoadingProgress();
+			startLoading(progress, () -> {
+				dataset.load(dir.toPath(), progress);
+				
+				// remember the dataset for the next start
+				if(SESSION_ENABLED) {
+					try {
+						session.save(dir.toPath(), dataset);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Searches the whole dataset for near duplicate images in the background.
+	 * A summary with the largest clusters is shown, the complete list can be 
+	 * exported as a CSV file.
+	 * 
+	 * @param event
+	 */
+	private void onFindDuplicatesClick(ActionEvent event) {
+		findDuplicatesBtn.setEnabled(false);
+		new Thread(() -> {
+			long start = System.currentTimeMillis();
+			IndexSnapshot snapshot = dataset.snapshot();
+			List<FeatureContainer[]> clusters = engine.findDuplicates(snapshot);
+			long duration = System.currentTimeMillis() - start;
+			int images = clusters.stream().mapToInt(cluster -> cluster.length).sum();
 			
-			// now add the All category
-			categoryToFileList.put("All", all);
+			// only the largest clusters are listed, the csv contains all of them
+			StringBuilder message = new StringBuilder();
+			message.append(clusters.size()+" duplicate clusters with "+images+" images found in "+duration+"ms.\n");
+			for (int c = 0; c < Math.min(clusters.size(), MAX_LISTED_CLUSTERS); c++) {
+				FeatureContainer[] cluster = clusters.get(c);
+				message.append("\n").append(Arrays.stream(cluster).limit(MAX_LISTED_NAMES).map(FeatureContainer::getName).collect(Collectors.joining(", ")));
+				if(cluster.length > MAX_LISTED_NAMES)
+					message.append(", ... (" + cluster.length + " images)");
+			}
+			if(clusters.size() > MAX_LISTED_CLUSTERS)
+				message.append("\n...");
 			
-			// calculate all the mean colors and mean images for all files
-			precalculateFeatures(categoryToFileList);
-		}
+			SwingUtilities.invokeLater(() -> {
+				findDuplicatesBtn.setEnabled(true);
+				if(clusters.isEmpty()) {
+					JOptionPane.showMessageDialog(this, message.toString(), "Find Duplicates", JOptionPane.INFORMATION_MESSAGE);
+					return;
+				}
+				message.append("\n\nExport all clusters as CSV?");
+				if(JOptionPane.showConfirmDialog(this, message.toString(), "Find Duplicates", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION)
+					return;
+				
+				JFileChooser fileChooser = new JFileChooser(lastDatasetDir);
+				fileChooser.setSelectedFile(new File("duplicates.csv"));
+				if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+					try {
+						DuplicateDetector.writeCsv(fileChooser.getSelectedFile().toPath(), clusters, snapshot);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}, "DuplicateDetector").start();
 	}
 	
-
 	/**
+	 * Runs the loader in a background thread. The lists and the progress bar
+	 * are updated until the progress is finished. No other dataset can be 
+	 * opened until the loader thread has ended, it may still save the session
+	 * after the progress is finished.
 	 * 
-	 * @param categoryToFileList
+	 * @param progress
+	 * @param loader
 	 */
-	private void precalculateFeatures(Map<String, File[]> categories) {
+	private void startLoading(LoadingProgress progress, Runnable loader) {
+		openDirectoryBtn.setEnabled(false);
+		Thread loaderThread = new Thread(loader, "DatasetLoader");
+		loaderThread.start();
 		
-		categoryFeatures.clear();
-		categories.forEach((categoryName, categoryFiles) -> {
-			if("All".equalsIgnoreCase(categoryName)) return;
-			
-			String name = categoryName;
-			Color meanColor = getMeanColor(categoryFiles);
-			BufferedImage meanImage = getMeanImage(categoryFiles);
-			FeatureContainer feature = new FeatureContainer(name, categoryName, meanColor, meanImage);
-			categoryFeatures.put(name, feature);
+		// update the lists and the progress while loading
+		Timer refreshTimer = new Timer(250, null);
+		refreshTimer.addActionListener(e -> {
+			refreshDatasetLists();
+			loadingProgressBar.setMaximum(progress.getDiscovered());
+			loadingProgressBar.setValue(progress.getProcessed());
+			loadingProgressBar.setString(progress.toString());
+			if(progress.isFinished() && !loaderThread.isAlive()) {
+				refreshTimer.stop();
+				openDirectoryBtn.setEnabled(true);
+			}
 		});
+		refreshTimer.start();
+	}
+	
+	/**
+	 * Adds new categories to the category list and new image files of 
+	 * the selected category to the image file list.
+	 */
+	private void refreshDatasetLists() {
 		
-		imageFeatures.clear();
-		categories.forEach((categoryName, categoryFiles) -> {
-			if("All".equalsIgnoreCase(categoryName)) return;
-			
-			for (File imageFile : categoryFiles) {	
-				String name = imageFile.toPath().getFileName().toString();
-				Color meanColor = getMeanColor(imageFile);
-				BufferedImage meanImage = getMeanImage(imageFile);
-				FeatureContainer feature = new FeatureContainer(name, categoryName, meanColor, meanImage);
-				imageFeatures.put(name, feature);
-			}			
+		// insert new categories in alphabetical order after "All"
+		dataset.getCategoryNames().stream().filter(name -> !IndexSnapshot.ALL_CATEGORY.equals(name)).forEach(name -> {
+			if(categoryListModel.contains(name)) return;
+			int pos = 1;
+			while(pos < categoryListModel.size() && categoryListModel.get(pos).compareTo(name) < 0)
+				pos++;
+			categoryListModel.add(pos, name);
 		});
+		
+		// the selected category might be complete now
+		String categoryName = categoryList.getSelectedValue();
+		if(categoryName != null) {
+			IndexSnapshot snapshot = dataset.snapshot();
+			if(categoryName.equals(pendingDisplayCategory) && snapshot.getCategoryFeature(categoryName) != null) {
+				updateMeanColorAndImage(snapshot.getCategoryFeature(categoryName));
+				pendingDisplayCategory = null;
+			}
+			
+			// append the new image files, a completed category gets sorted
+			File[] files = snapshot.getFiles(categoryName);
+			int same = 0;
+			while(same < imageFileListModel.size() && same < files.length && files[same].equals(imageFileListModel.get(same)))
+				same++;
+			if(same < imageFileListModel.size())
+				imageFileListModel.clear();
+			for (int i = imageFileListModel.size(); i < files.length; i++) 
+				imageFileListModel.addElement(files[i]);
+		}
+	}
+	
+	/**
+	 * Ranking and prediction of a search request
+	 */
+	private static class SearchResult {
+		
+		protected final List<FeatureContainer> ranking;
+		protected final Prediction prediction;
+		
+		public SearchResult(List<FeatureContainer> ranking, Prediction prediction) {
+			this.ranking = ranking;
+			this.prediction = prediction;
+		}
+		
+		/**
+		 * Memory usage in bytes, the features itself are shared with the index.
+		 * 
+		 * @return
+		 */
+		public long estimateSize() {
+			return 64 + 8L * ranking.size();
+		}
 	}
 	
 	/**
@@ -568,6 +905,21 @@ public abstract class DatasetViewerBase extends JPanel {
 	 */
 	public abstract List<FeatureContainer> retrieve(FeatureContainer query, FeatureContainer[] database, FeatureType featureType);
 
+	/**
+	 * Two stage search which uses the category features as a coarse index.
+	 * The categories are ranked first, afterwards only the images of the 
+	 * closest categories are sorted based on their similarity to the query.
+	 * 
+	 * @param query
+	 * @param categoryDatabase features of all categories
+	 * @param categoryImages features of the images per category name
+	 * @param featureType
+	 * @param probes number of categories to search in, 0 for adaptive
+	 * @return sorted list of the images inside the probed categories
+	 */
+	public abstract List<FeatureContainer> retrieveCascaded(FeatureContainer query, FeatureContainer[] categoryDatabase, 
+			Map<String, FeatureContainer[]> categoryImages, FeatureType featureType, int probes);
+
 	/**
 	 * Predict the category.
 	 * Make the prediction based on the sorted list of features (images or categories). 
@@ -577,4 +929,17 @@ public abstract class DatasetViewerBase extends JPanel {
 	 * @return predicted category
 	 */
 	public abstract String classify(List<FeatureContainer> sortedList, int k);
+	
+	/**
+	 * Predict the category with a majority vote of the k nearest neighbours.
+	 * Optional the votes are weighted by the distance of the neighbours to the query.
+	 * 
+	 * @param query
+	 * @param sortedList
+	 * @param featureType feature used to calculate the distances
+	 * @param k
+	 * @param distanceWeighted
+	 * @return predicted category and its confidence or NULL if the list is empty
+	 */
+	public abstract Prediction classify(FeatureContainer query, List<FeatureContainer> sortedList, FeatureType featureType, int k, boolean distanceWeighted);
 }
\ No newline at end of file